@@ -1,16 +1,24 @@
 package com.performancetestgurus;
 
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
+import java.util.Arrays;
 import java.util.Base64;
 
 import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
@@ -47,6 +55,8 @@ import javax.swing.filechooser.FileSystemView;
 
 public class App implements ActionListener
 {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    
     private JTextField fingerTextField01 = new JTextField(100);
     private JTextField fingerTextField02 = new JTextField(100);
     private JTextField fingerTextField03 = new JTextField(100);
@@ -298,16 +308,16 @@ public class App implements ActionListener
   	
     }
     
-    private byte[] getBytesFromFile(String fileName){
+    static byte[] getBytesFromFile(String fileName){
     	if(fileName.trim().compareTo("")==0) {
         	System.out.println("File Name Null : " + fileName);
     		return null;
     	}
     	if(fileName.trim().length() > 4 && 
     			fileName.substring(fileName.length() - 3 ).toUpperCase().compareTo("TXT")==0) {
-	    	try {
-	    		String contents = new String(Files.readAllBytes(Paths.get(fileName.trim()))); 
-	    		return Base64.getDecoder().decode(contents);
+	    	try (FileChannel channel = FileChannel.open(Paths.get(fileName.trim()), StandardOpenOption.READ);
+	    			InputStream contents = Base64.getMimeDecoder().wrap(Channels.newInputStream(channel))) {
+	    		return readBase64(contents, channel.size());
 	    	}catch(Exception e) {
 	    		e.printStackTrace();
 	    		return null;
@@ -327,34 +337,91 @@ public class App implements ActionListener
     	}
 
     
-    private void writeSlapToFile(String fileName, byte[] slap) {
+    static void writeSlapToFile(String fileName, byte[] slap) {
     	if(fileName.trim().compareTo("")==0) {
     		System.out.println("Unable to write slap - no file name!!");
     	}
-    	
-    	if(fileName.trim().length() > 4 && 
-    			fileName.substring(fileName.length() - 3 ).toUpperCase().compareTo("TXT")==0) {
-	    	try {
-	    		String contents = Base64.getEncoder().encodeToString(slap);
-	    		Files.write( Paths.get(fileName.trim()), contents.getBytes(), StandardOpenOption.CREATE);
-	    		return;
-	    	}catch(Exception e) {
-	    		e.printStackTrace();
-	    		return;
-	    		}
+    	if(imageType(fileName) == null) {
+    		System.out.println( "**** Unknown filetype - Please use TXT/WSQ : " + fileName );
+    		return;
+    	}
+    	try {
+    		writeImage(fileName, slap);
+    	}catch(IOException e) {
+    		e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Writes an image the way writeSlapToFile does, but fails instead of printing - for the headless tools
+     * 
+     * @param fileName  .wsq file for raw WSQ, .txt file for base64 encoded WSQ
+     * @param wsq       image in wsq format
+     * @throws IOException if the file type is unknown or the file cannot be written
+     */
+    static void writeImage(String fileName, byte[] wsq) throws IOException {
+    	writeImage(fileName, wsq, false);
+    }
+    
+    /**
+     * Writes an image for the headless tools, optionally synced to disk before returning
+     * 
+     * @param fileName  .wsq file for raw WSQ, .txt file for base64 encoded WSQ
+     * @param wsq       image in wsq format
+     * @param durable   true to force the file and its directory entry to disk, so the image survives a crash
+     * @throws IOException if the file type is unknown or the file cannot be written or synced
+     */
+    static void writeImage(String fileName, byte[] wsq, boolean durable) throws IOException {
+    	String type = imageType(fileName);
+    	if(type == null) {
+    		throw new IOException("Unknown filetype - Please use TXT/WSQ : " + fileName);
+    	}
+    	if(wsq == null) {
+    		throw new IOException("No image for " + fileName);
+    	}
+    	Path path = Paths.get(fileName.trim());
+    	OutputStream file = new BufferedOutputStream(Channels.newOutputStream(
+    			FileChannel.open(path, StandardOpenOption.CREATE, 
+    					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), WRITE_BUFFER_SIZE);
+    	try (OutputStream contents = type.equals("TXT") ? Base64.getEncoder().wrap(file) : file) {
+    		contents.write(wsq);
+    	}
+    	if(durable) {
+    		// the base64 stream writes its padding on close, so the file is synced through a second channel
+    		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+    			channel.force(true);
     		}
-	       	if(fileName.trim().length() > 4 && 
-	    			fileName.substring(fileName.length() - 3 ).toUpperCase().compareTo("WSQ")==0) {
-		    	try {
-		    		Files.write( Paths.get(fileName.trim()), slap, StandardOpenOption.CREATE);
-		    		return;
-		    	}catch(Exception e) {
-		    		e.printStackTrace();
-		    		return;
-		    	}
-	    	}
-	    	System.out.println( "**** Unknown filetype - Please use TXT/WSQ : " + fileName );
-	    	}
+    		Util.forceDirectory(path.toAbsolutePath().getParent());
+    	}
+    }
+    
+    /**
+     * @return "TXT", "WSQ" or null for a file name of any other type
+     */
+    private static String imageType(String fileName) {
+    	String name = fileName.trim();
+    	if(name.length() <= 4) {
+    		return null;
+    	}
+    	String type = name.substring(name.length() - 3).toUpperCase();
+    	return type.equals("TXT") || type.equals("WSQ") ? type : null;
+    }
+    
+    /**
+     * Reads a base64 stream decoded on the fly - the decoded size is at most 3/4 of the encoded size
+     */
+    private static byte[] readBase64(InputStream contents, long encodedSize) throws IOException {
+    	if(encodedSize > Integer.MAX_VALUE) {
+    		throw new IOException("Base64 file too large : " + encodedSize + " bytes");
+    	}
+    	byte[] decoded = new byte[(int) (encodedSize / 4 * 3 + 3)];
+    	int length = 0;
+    	int read;
+    	while(length < decoded.length && (read = contents.read(decoded, length, decoded.length - length)) > 0) {
+    		length += read;
+    	}
+    	return length == decoded.length ? decoded : Arrays.copyOf(decoded, length);
+    }
     
     private void processSlaps() {
  	   byte[] finger01 = getBytesFromFile(fingerTextField01.getText());
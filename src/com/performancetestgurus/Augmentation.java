@@ -0,0 +1,253 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded image augmentation of decoded fingers - turns one decoded finger into many distinct
+ * slap inputs without decoding it again
+ *
+ * Per finger and seed the augmentation picks, uniformly within the configured limits:
+ *   shift    - translation jitter around the fixed slap position of the finger
+ *   rotation - small rotation around the centre of the crop
+ *   contrast - darkening (above 1) or lightening (below 1) of the ridges, white stays white
+ *   gamma    - gamma curve of the grey levels
+ *   warp     - smooth sine displacement field, like skin pressed unevenly on the platen
+ *
+ * Contrast and gamma become a 256 entry lookup table. Rotation and warp are one inverse mapping
+ * pass in 16.16 fixed point with bilinear 8 bit weights - per pixel only integer adds, shifts
+ * and a table lookup. The same seed always gives the same variant.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class Augmentation {
+
+	private static final int FIXED_SHIFT = 16;
+	private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+	private static final int WHITE = 255;
+
+	private final int maxShift;
+	private final double maxRotation;
+	private final double minContrast;
+	private final double maxContrast;
+	private final double minGamma;
+	private final double maxGamma;
+	private final double warpAmplitude;
+	private final double warpWavelength;
+
+	private Augmentation(Builder builder) {
+		maxShift = builder.maxShift;
+		maxRotation = Math.toRadians(builder.maxRotationDegrees);
+		minContrast = builder.minContrast;
+		maxContrast = builder.maxContrast;
+		minGamma = builder.minGamma;
+		maxGamma = builder.maxGamma;
+		warpAmplitude = builder.warpAmplitude;
+		warpWavelength = builder.warpWavelength;
+	}
+
+	public static class Builder {
+		private int maxShift = 16;
+		private double maxRotationDegrees = 5;
+		private double minContrast = 0.85;
+		private double maxContrast = 1.15;
+		private double minGamma = 0.85;
+		private double maxGamma = 1.15;
+		private double warpAmplitude = 2;
+		private double warpWavelength = 160;
+
+		   /**
+		   * @param int pixels - largest translation in x and y
+		   **/
+		public Builder shift(int pixels) {
+			if(pixels < 0) {
+				throw new IllegalArgumentException("Shift must not be negative");
+			}
+			this.maxShift = pixels;
+			return this;
+		}
+
+		   /**
+		   * @param double degrees - largest rotation either way
+		   **/
+		public Builder rotation(double degrees) {
+			if(degrees < 0 || degrees > 45) {
+				throw new IllegalArgumentException("Rotation must be in <0,45> degrees");
+			}
+			this.maxRotationDegrees = degrees;
+			return this;
+		}
+
+		   /**
+		   * @param double min - smallest contrast factor, 1 leaves the image unchanged
+		   * @param double max - largest contrast factor
+		   **/
+		public Builder contrast(double min, double max) {
+			if(min <= 0 || max < min) {
+				throw new IllegalArgumentException("Contrast range must be positive and ordered");
+			}
+			this.minContrast = min;
+			this.maxContrast = max;
+			return this;
+		}
+
+		   /**
+		   * @param double min - smallest gamma, 1 leaves the image unchanged
+		   * @param double max - largest gamma
+		   **/
+		public Builder gamma(double min, double max) {
+			if(min <= 0 || max < min) {
+				throw new IllegalArgumentException("Gamma range must be positive and ordered");
+			}
+			this.minGamma = min;
+			this.maxGamma = max;
+			return this;
+		}
+
+		   /**
+		   * @param double amplitude - largest displacement of the warp in pixels, 0 for no warp
+		   * @param double wavelength - wavelength of the warp in pixels
+		   **/
+		public Builder warp(double amplitude, double wavelength) {
+			if(amplitude < 0 || wavelength <= 0) {
+				throw new IllegalArgumentException("Warp amplitude must not be negative and wavelength must be positive");
+			}
+			this.warpAmplitude = amplitude;
+			this.warpWavelength = wavelength;
+			return this;
+		}
+
+		public Augmentation build() {
+			return new Augmentation(this);
+		}
+	}
+
+	   /**
+	   * variant - The augmentation of all fingers of one slap
+	   *
+	   * @param long seed - e.g. an identity hash or an emission counter
+	   * @return Variant deterministic transforms per finger position
+	   *
+	   **/
+	public Variant variant(long seed) {
+		return new Variant(seed);
+	}
+
+	   /**
+	   * Variant - The transforms picked for one seed
+	   *
+	   **/
+	public final class Variant {
+		private final long seed;
+
+		private Variant(long seed) {
+			this.seed = seed;
+		}
+
+		   /**
+		   * offset - Translation of a finger
+		   *
+		   * @param int position - finger position 1 to 10
+		   * @return int[] x and y offset in pixels
+		   *
+		   **/
+		public int[] offset(int position) {
+			SplittableRandom random = random(position, 1);
+			return new int[] {random.nextInt(-maxShift, maxShift + 1), random.nextInt(-maxShift, maxShift + 1)};
+		}
+
+		   /**
+		   * apply - Rotates, warps and re-tones a finger crop
+		   *
+		   * @param BufferedImage crop - Grey Scale (TYPE_BYTE_GRAY) finger crop, not changed
+		   * @param int position - finger position 1 to 10
+		   * @return BufferedImage augmented copy of the crop
+		   *
+		   **/
+		public BufferedImage apply(BufferedImage crop, int position) {
+			if(crop == null) {
+				return null;
+			}
+			SplittableRandom random = random(position, 2);
+			double angle = uniform(random, -maxRotation, maxRotation);
+			double contrast = uniform(random, minContrast, maxContrast);
+			double gamma = uniform(random, minGamma, maxGamma);
+			double phaseX = random.nextDouble() * 2 * Math.PI;
+			double phaseY = random.nextDouble() * 2 * Math.PI;
+			return transform(crop, lookupTable(contrast, gamma), angle, phaseX, phaseY);
+		}
+
+		private SplittableRandom random(int position, int stream) {
+			return new SplittableRandom(Util.mix64(Util.mix64(Util.mix64(seed) + position) + stream));
+		}
+	}
+
+	private static double uniform(SplittableRandom random, double min, double max) {
+		return max > min ? min + random.nextDouble() * (max - min) : min;
+	}
+
+	private static byte[] lookupTable(double contrast, double gamma) {
+		byte[] table = new byte[256];
+		for(int i = 0; i < table.length; i++) {
+			double ink = 1 - Math.pow(i / 255.0, gamma);	// 0 for white paper, 1 for black ridges
+			table[i] = (byte) Math.max(0, Math.min(WHITE, Math.round(WHITE * (1 - ink * contrast))));
+		}
+		return table;
+	}
+
+	private BufferedImage transform(BufferedImage crop, byte[] table, double angle, double phaseX, double phaseY) {
+		int width = crop.getWidth();
+		int height = crop.getHeight();
+		byte[] source = (byte[]) crop.getRaster().getDataElements(0, 0, width, height, null);
+		byte[] target = new byte[width * height];
+
+		// x displacement depends on the row, y displacement on the column - one table each
+		int[] warpX = new int[height];
+		int[] warpY = new int[width];
+		for(int y = 0; y < height; y++) {
+			warpX[y] = (int) Math.round(warpAmplitude * Math.sin(2 * Math.PI * y / warpWavelength + phaseX) * FIXED_ONE);
+		}
+		for(int x = 0; x < width; x++) {
+			warpY[x] = (int) Math.round(warpAmplitude * Math.sin(2 * Math.PI * x / warpWavelength + phaseY) * FIXED_ONE);
+		}
+
+		int cos = (int) Math.round(Math.cos(angle) * FIXED_ONE);
+		int sin = (int) Math.round(Math.sin(angle) * FIXED_ONE);
+		int centreX = width << (FIXED_SHIFT - 1);
+		int centreY = height << (FIXED_SHIFT - 1);
+		int maxX = (width - 1) << FIXED_SHIFT;
+		int maxY = (height - 1) << FIXED_SHIFT;
+		for(int y = 0; y < height; y++) {
+			int dy = y - height / 2;
+			// inverse rotation of the first pixel of the row, then step by (cos, -sin) per pixel
+			int sx = centreX + (-width / 2) * cos + dy * sin + warpX[y];
+			int sy = centreY - (-width / 2) * sin + dy * cos;
+			int row = y * width;
+			for(int x = 0; x < width; x++, sx += cos, sy -= sin) {
+				int px = sx;
+				int py = sy + warpY[x];
+				if(px < 0 || py < 0 || px > maxX || py > maxY) {
+					target[row + x] = (byte) WHITE;
+					continue;
+				}
+				int ix = px >> FIXED_SHIFT;
+				int iy = py >> FIXED_SHIFT;
+				int fx = (px >> (FIXED_SHIFT - 8)) & 0xFF;
+				int fy = (py >> (FIXED_SHIFT - 8)) & 0xFF;
+				int i = iy * width + ix;
+				int right = ix + 1 < width ? 1 : 0;
+				int down = iy + 1 < height ? width : 0;
+				int top = (source[i] & 0xFF) * (256 - fx) + (source[i + right] & 0xFF) * fx;
+				int bottom = (source[i + down] & 0xFF) * (256 - fx) + (source[i + down + right] & 0xFF) * fx;
+				target[row + x] = table[(top * (256 - fy) + bottom * fy) >>> 16];
+			}
+		}
+		BufferedImage augmented = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		augmented.getRaster().setDataElements(0, 0, width, height, target);
+		return augmented;
+	}
+}
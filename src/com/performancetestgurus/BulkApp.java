@@ -0,0 +1,611 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Headless bulk generator - creates slaps (and optionally re-encoded fingers) for every
+ * identity of a manifest file (see Manifest)
+ *
+ * Usage: BulkApp manifest.csv [--workers n] [--bitrate f] [--ppi n] [--no-metadata] [--comment text]
+ *                             [--mode pool|pipeline|virtual] [--io-threads n] [--queue n] [--in-flight n] [--compare]
+ *                             [--container file] [--group-commit] [--sync-bytes n] [--sync-millis n]
+ *                             [--checkpoint file] [--shard i/N] [--augment seed] [--account] [--finger-store file]
+ *
+ * Input and output files use the same conventions as the UI: .wsq files are raw WSQ,
+ * .txt files are base64 encoded WSQ. The run ends with a throughput and latency summary.
+ *
+ * Modes:
+ *   pool     - (default) each of --workers platform threads processes one identity at a time from read to write
+ *   pipeline - the work is split into read, decode, compose, encode and write stages (see Pipeline),
+ *              the I/O stages get --io-threads each, the CPU stages --workers each, and the queues
+ *              between the stages hold at most --queue identities
+ *   virtual  - each identity runs on its own virtual thread (JDK 21+), at most --in-flight at a time,
+ *              so file reads and writes of many identities can be in flight at once - decode, compose
+ *              and encode are limited to --workers identities at a time by a semaphore
+ *
+ * --compare runs the manifest in virtual mode and then in pool mode with the same number of
+ * workers and prints both summaries.
+ *
+ * --container appends all outputs to a single container file (see SlapContainer) instead of
+ * writing one file per image. The manifest output columns still select which images are kept,
+ * SlapContainer export --manifest unpacks them to those paths.
+ *
+ * --group-commit hands the outputs to a dedicated writer thread (see GroupCommitWriter) that
+ * syncs them to disk every --sync-bytes bytes (default 64 MB) or --sync-millis ms (default 1000).
+ * An identity counts as completed once its outputs are synced.
+ *
+ * --checkpoint logs every completed identity with the hashes of its outputs (see CheckpointLog).
+ * A run with the same log skips the identities already in it, so a crashed run can be restarted.
+ * Checkpointing needs file outputs, as a container is only readable after its writer was closed.
+ * An identity is only logged once its outputs are on disk - without --group-commit every output
+ * file and its directory are synced before the identity is logged.
+ *
+ * --shard i/N generates only the identities of shard i of N (see Shard), so N processes on any
+ * number of hosts can share a manifest without coordination. Per-shard containers are combined
+ * with SlapContainer merge.
+ *
+ * --augment applies a seeded variant of shift, rotation, contrast, gamma and warp to the fingers
+ * of each slap (see Augmentation). The variant depends only on the seed and the identity id, so
+ * reruns and shards produce the same images.
+ *
+ * --account adds the CPU time and the bytes allocated per decode, compose, encode, slap and
+ * encoder stage to the summary (see ResourceAccounting).
+ *
+ * --finger-store reads the finger crops placed on the slaps from a decoded finger store (see
+ * DecodedFingerStore), created if needed. Fingers missing from the store are decoded and added,
+ * so repeat runs over the same corpus skip the decode of every finger that is not re-encoded.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public class BulkApp {
+
+	private final SlapOptions options;
+	private final SlapOptions slapsOnlyOptions;
+	private final int workers;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder images = new LongAdder();
+	private long elapsedNanos;
+	private SlapContainer.Writer container;
+	private GroupCommitWriter<Job> writer;
+	private CheckpointLog checkpoint;
+	private Shard shard;
+	private final LongAdder skipped = new LongAdder();
+
+	public BulkApp(SlapOptions.Builder options, int workers) {
+		if(workers <= 0) {
+			throw new IllegalArgumentException("Workers must be greater than 0");
+		}
+		this.options = options.reEncodeFingers(true).build();
+		this.slapsOnlyOptions = options.reEncodeFingers(false).build();
+		this.workers = workers;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0) {
+			usage();
+		}
+		Path manifest = Paths.get(args[0]);
+		SlapOptions.Builder options = new SlapOptions.Builder();
+		int workers = Runtime.getRuntime().availableProcessors();
+		String mode = "pool";
+		boolean compare = false;
+		int ioThreads = 4;
+		int queue = 0;
+		int inFlight = 1000;
+		Path containerPath = null;
+		boolean groupCommit = false;
+		long syncBytes = 64L * 1024 * 1024;
+		long syncMillis = 1000;
+		Path checkpointPath = null;
+		Path fingerStorePath = null;
+		Shard shard = null;
+		for(int i = 1; i < args.length; i++) {
+			switch(args[i]) {
+			case "--workers":
+				workers = Integer.parseInt(value(args, ++i));
+				break;
+			case "--bitrate":
+				options.bitrate(Float.parseFloat(value(args, ++i)));
+				break;
+			case "--ppi":
+				options.ppi(Integer.parseInt(value(args, ++i)));
+				break;
+			case "--no-metadata":
+				options.includeMetadata(false);
+				break;
+			case "--comment":
+				options.comment(value(args, ++i));
+				break;
+			case "--mode":
+				mode = value(args, ++i);
+				break;
+			case "--compare":
+				compare = true;
+				break;
+			case "--in-flight":
+				inFlight = Integer.parseInt(value(args, ++i));
+				break;
+			case "--io-threads":
+				ioThreads = Integer.parseInt(value(args, ++i));
+				break;
+			case "--queue":
+				queue = Integer.parseInt(value(args, ++i));
+				break;
+			case "--container":
+				containerPath = Paths.get(value(args, ++i));
+				break;
+			case "--group-commit":
+				groupCommit = true;
+				break;
+			case "--sync-bytes":
+				syncBytes = Long.parseLong(value(args, ++i));
+				groupCommit = true;
+				break;
+			case "--sync-millis":
+				syncMillis = Long.parseLong(value(args, ++i));
+				groupCommit = true;
+				break;
+			case "--checkpoint":
+				checkpointPath = Paths.get(value(args, ++i));
+				break;
+			case "--shard":
+				shard = Shard.parse(value(args, ++i));
+				break;
+			case "--augment":
+				options.augmentation(new Augmentation.Builder().build()).seed(Long.parseLong(value(args, ++i)));
+				break;
+			case "--finger-store":
+				fingerStorePath = Paths.get(value(args, ++i));
+				break;
+			case "--account":
+				if(!ResourceAccounting.setEnabled(true)) {
+					System.out.println("Thread CPU time not supported by this JVM - --account ignored");
+				}
+				break;
+			default:
+				System.out.println("Unknown option : " + args[i]);
+				usage();
+			}
+		}
+		if(fingerStorePath != null) {
+			SlapGen.setDecodedFingerStore(DecodedFingerStore.open(fingerStorePath));
+			System.out.println("Store      : " + SlapGen.getDecodedFingerStore().size() + " decoded fingers in " + fingerStorePath);
+		}
+		if(compare) {
+			BulkApp virtual = new BulkApp(options, workers);
+			System.out.println("***** virtual threads *****");
+			virtual.runVirtual(manifest, inFlight);
+			BulkApp pool = new BulkApp(options, workers);
+			System.out.println("***** platform pool *****");
+			pool.run(manifest);
+			System.out.println(String.format("Virtual / platform throughput : %.2f", 
+					virtual.throughput() / pool.throughput()));
+			System.exit(virtual.failed.sum() + pool.failed.sum() == 0 ? 0 : 1);
+		}
+		SlapGenMetrics.register();
+		BulkApp app = new BulkApp(options, workers);
+		app.setShard(shard);
+		if(checkpointPath != null) {
+			if(containerPath != null) {
+				System.out.println("--checkpoint can not be combined with --container");
+				usage();
+			}
+			app.checkpointTo(CheckpointLog.open(checkpointPath));
+			System.out.println("Checkpoint : " + app.checkpoint.size() + " identities already completed");
+		}
+		if(containerPath != null) {
+			app.writeTo(SlapContainer.create(containerPath));
+		}
+		if(groupCommit) {
+			app.groupCommit(syncBytes, syncMillis);
+		}
+		try {
+			switch(mode) {
+			case "pool":
+				app.run(manifest);
+				break;
+			case "pipeline":
+				app.runPipeline(manifest, ioThreads, queue > 0 ? queue : workers * 2);
+				break;
+			case "virtual":
+				app.runVirtual(manifest, inFlight);
+				break;
+			default:
+				System.out.println("Unknown mode : " + mode);
+				usage();
+			}
+		} finally {
+			if(app.container != null) {
+				app.container.close();
+			}
+			if(app.checkpoint != null) {
+				app.checkpoint.close();
+			}
+			if(SlapGen.getDecodedFingerStore() != null) {
+				SlapGen.getDecodedFingerStore().close();
+			}
+		}
+		System.exit(app.failed.sum() == 0 ? 0 : 1);
+	}
+
+	private static String value(String[] args, int i) {
+		if(i >= args.length) {
+			System.out.println("Missing value for " + args[i - 1]);
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.out.println("Usage : BulkApp <manifest> [--workers n] [--bitrate f] [--ppi n] [--no-metadata] [--comment text]");
+		System.out.println("                           [--mode pool|pipeline|virtual] [--io-threads n] [--queue n] [--in-flight n] [--compare]");
+		System.out.println("                           [--container file] [--group-commit] [--sync-bytes n] [--sync-millis n]");
+		System.out.println("                           [--checkpoint file] [--shard i/N] [--augment seed] [--account] [--finger-store file]");
+		System.exit(2);
+	}
+
+	   /**
+	   * writeTo - Appends outputs to a container instead of writing one file per image
+	   *
+	   * @param SlapContainer.Writer container - open container, closed by the caller after the run
+	   *
+	   **/
+	public void writeTo(SlapContainer.Writer container) {
+		this.container = container;
+	}
+
+	   /**
+	   * groupCommit - Writes outputs on a dedicated writer thread that syncs them in batches
+	   * 
+	   * Call after writeTo when writing to a container.
+	   *
+	   * @param long syncBytes - sync after this many bytes
+	   * @param long syncMillis - sync at the latest this long after the first unsynced write
+	   *
+	   **/
+	public void groupCommit(long syncBytes, long syncMillis) {
+		GroupCommitWriter.Target target = container != null 
+				? GroupCommitWriter.container(container) : GroupCommitWriter.files();
+		writer = new GroupCommitWriter.Builder<Job>(target)
+				.syncEvery(syncBytes, syncMillis)
+				.onDurable(this::durable)
+				.onFailure((jobs, e) -> jobs.forEach(job -> failed(job, e)))
+				.build();
+	}
+
+	   /**
+	   * checkpointTo - Skips identities completed in an earlier run and logs the ones completed in this run
+	   *
+	   * @param CheckpointLog checkpoint - open checkpoint log, closed by the caller after the run
+	   *
+	   **/
+	public void checkpointTo(CheckpointLog checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	   /**
+	   * setShard - Generates only the identities of one shard
+	   *
+	   * @param Shard shard - shard of this process, null for all identities
+	   *
+	   **/
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	   /**
+	   * run - Generates every identity of a manifest, one identity per worker, and prints a summary
+	   *
+	   * @param Path manifest - CSV or TSV manifest file
+	   *
+	   **/
+	public void run(Path manifest) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		Semaphore pending = new Semaphore(workers * 2);
+		long start = System.nanoTime();
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			records.filter(this::pending).forEach(record -> {
+				pending.acquireUninterruptibly();
+				pool.execute(() -> {
+					try {
+						process(record);
+					} finally {
+						pending.release();
+					}
+				});
+			});
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		finishOutput();
+		printSummary(System.nanoTime() - start);
+	}
+
+	   /**
+	   * runPipeline - Generates every identity of a manifest through a staged pipeline and prints a summary
+	   *
+	   * @param Path manifest - CSV or TSV manifest file
+	   * @param int ioThreads - threads of the read stage and of the write stage
+	   * @param int queueCapacity - identities queued in front of each stage
+	   *
+	   **/
+	public void runPipeline(Path manifest, int ioThreads, int queueCapacity) throws Exception {
+		Pipeline<Job> pipeline = new Pipeline.Builder<Job>()
+				.stage("read", ioThreads, queueCapacity, this::read)
+				.stage("decode", workers, queueCapacity, this::decode)
+				.stage("compose", workers, queueCapacity, this::compose)
+				.stage("encode", workers, queueCapacity, this::encode)
+				.stage("write", ioThreads, queueCapacity, this::write)
+				.onFailure(this::failed)
+				.build();
+		long start = System.nanoTime();
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			for(Manifest.Record record : (Iterable<Manifest.Record>) records::iterator) {
+				if(pending(record)) {
+					pipeline.submit(new Job(record));
+				}
+			}
+		} finally {
+			pipeline.finish();
+		}
+		finishOutput();
+		printSummary(System.nanoTime() - start);
+		for(Pipeline.StageMetrics stage : pipeline.getMetrics()) {
+			System.out.println("Stage      : " + stage);
+		}
+	}
+
+	   /**
+	   * runVirtual - Generates every identity of a manifest on its own virtual thread and prints a summary
+	   * 
+	   * Needs JDK 21 or later.
+	   *
+	   * @param Path manifest - CSV or TSV manifest file
+	   * @param int inFlight - identities processed at the same time (mostly waiting for I/O)
+	   *
+	   **/
+	public void runVirtual(Path manifest, int inFlight) throws Exception {
+		ExecutorService executor = Util.newVirtualThreadPerTaskExecutor();
+		Semaphore pending = new Semaphore(inFlight);
+		Semaphore cpu = new Semaphore(workers);
+		long start = System.nanoTime();
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			records.filter(this::pending).forEach(record -> {
+				pending.acquireUninterruptibly();
+				executor.execute(() -> {
+					try {
+						process(record, cpu);
+					} finally {
+						pending.release();
+					}
+				});
+			});
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		finishOutput();
+		printSummary(System.nanoTime() - start);
+	}
+
+	private void process(Manifest.Record record) {
+		process(record, null);
+	}
+
+	private void process(Manifest.Record record, Semaphore cpu) {
+		Job job = new Job(record);
+		try {
+			read(job);
+			if(cpu != null) {
+				cpu.acquireUninterruptibly();
+			}
+			try {
+				job.result = SlapGen.generate(job.tenPrint, job.options());
+			} finally {
+				if(cpu != null) {
+					cpu.release();
+				}
+			}
+			job.tenPrint = null;
+			write(job);
+		} catch (Exception e) {
+			failed(job, e);
+		}
+	}
+
+	private void read(Job job) {
+		job.tenPrint = job.record.readTenPrint();
+	}
+
+	private void decode(Job job) {
+		boolean reEncode = job.options().isReEncodeFingers();
+		job.fingers = new BufferedImage[TenPrint.FINGER_COUNT];
+		job.crops = new BufferedImage[TenPrint.FINGER_COUNT];
+		for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+			byte[] finger = job.tenPrint.getFinger(position);
+			if(finger == null) {
+				continue;
+			}
+			if(reEncode) {
+				job.fingers[position - 1] = SlapGen.decodeFinger(finger);
+				job.crops[position - 1] = SlapGen.cropAndStore(finger, job.fingers[position - 1]);
+			} else {
+				job.crops[position - 1] = SlapGen.decodeCrop(finger);
+			}
+		}
+		job.tenPrint = null;
+	}
+
+	private void compose(Job job) {
+		job.composeCosts = new ResourceAccounting.Span[3];
+		job.slaps = SlapGen.composeCrops(job.crops, job.options().variant(job.record.getId()), job.composeCosts);
+		job.crops = null;
+	}
+
+	private void encode(Job job) {
+		SlapOptions jobOptions = job.options();
+		byte[][] fingers = new byte[TenPrint.FINGER_COUNT][];
+		if(jobOptions.isReEncodeFingers()) {
+			for(int i = 0; i < fingers.length; i++) {
+				fingers[i] = SlapGen.encode(job.fingers[i], jobOptions);
+			}
+		}
+		job.result = new SlapResult(job.record.getId(), fingers,
+				SlapGen.encodeSlap(job.slaps[0], job.composeCosts[0], jobOptions),
+				SlapGen.encodeSlap(job.slaps[1], job.composeCosts[1], jobOptions),
+				SlapGen.encodeSlap(job.slaps[2], job.composeCosts[2], jobOptions));
+		job.fingers = null;
+		job.slaps = null;
+		job.composeCosts = null;
+	}
+
+	private void write(Job job) throws IOException, InterruptedException {
+		List<GroupCommitWriter.Image> outputs = new ArrayList<>(SlapResult.THUMB_SLAP);
+		output(job, SlapResult.RIGHT_SLAP, outputs);
+		output(job, SlapResult.LEFT_SLAP, outputs);
+		output(job, SlapResult.THUMB_SLAP, outputs);
+		for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+			output(job, position, outputs);
+		}
+		job.result = null;
+		job.outputs = outputs;
+		if(writer != null) {
+			writer.submit(job, outputs);
+			return;
+		}
+		for(GroupCommitWriter.Image image : outputs) {
+			if(container != null) {
+				container.append(image.id, image.position, image.wsq);
+			} else {
+				App.writeImage(image.fileName, image.wsq, checkpoint != null);
+			}
+		}
+		completed(job);
+	}
+
+	private void output(Job job, int position, List<GroupCommitWriter.Image> outputs) {
+		String fileName = job.record.getOutputPath(position);
+		byte[] image = job.result.getFinger(position);
+		if(!fileName.isEmpty() && image != null) {
+			outputs.add(new GroupCommitWriter.Image(job.record.getId(), position, fileName, image));
+		}
+	}
+
+	private boolean pending(Manifest.Record record) {
+		if(shard != null && !shard.contains(record.getId())) {
+			return false;
+		}
+		if(checkpoint != null && checkpoint.isCompleted(record)) {
+			skipped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private void durable(List<Job> jobs) {
+		for(Job job : jobs) {
+			try {
+				completed(job);
+			} catch (IOException e) {
+				failed(job, e);
+			}
+		}
+		if(checkpoint != null) {
+			try {
+				checkpoint.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void completed(Job job) throws IOException {
+		if(checkpoint != null) {
+			checkpoint.complete(job.record.getId(), job.outputs);
+		}
+		images.add(job.outputs.size());
+		job.outputs = null;
+		latency.recordSince(job.start);
+		completed.increment();
+	}
+
+	private void finishOutput() throws IOException {
+		if(writer != null) {
+			writer.close();
+			System.out.println("Writer     : " + writer);
+		}
+	}
+
+	private void failed(Job job, Throwable e) {
+		failed.increment();
+		System.out.println("**** Unable to generate " + job.record.getId());
+		e.printStackTrace();
+	}
+
+	private double throughput() {
+		return completed.sum() / (elapsedNanos / 1e9);
+	}
+
+	private void printSummary(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+		double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format("Records    : %d completed, %d failed in %.2fs with %d workers",
+				completed.sum(), failed.sum(), seconds, workers));
+		if(skipped.sum() > 0) {
+			System.out.println("Skipped    : " + skipped.sum() + " identities completed in an earlier run");
+		}
+		System.out.println(String.format("Throughput : %.2f records/s, %.2f images/s",
+				completed.sum() / seconds, images.sum() / seconds));
+		System.out.println("Latency    : " + latency);
+		if(ResourceAccounting.isEnabled()) {
+			ResourceAccounting.get().getCosts().forEach((operation, cost) ->
+					System.out.println(String.format("Cost       : %-17s %s", operation, cost)));
+			ResourceAccounting.get().reset();
+		}
+	}
+
+	   /**
+	   * Job - State of one identity on its way through the bulk generator
+	   *
+	   **/
+	private final class Job {
+		final Manifest.Record record;
+		final long start = System.nanoTime();
+		TenPrint tenPrint;
+		BufferedImage[] fingers;
+		BufferedImage[] crops;
+		BufferedImage[] slaps;
+		ResourceAccounting.Span[] composeCosts;
+		SlapResult result;
+		List<GroupCommitWriter.Image> outputs;
+
+		Job(Manifest.Record record) {
+			this.record = record;
+		}
+
+		SlapOptions options() {
+			return record.hasReEncodedOutputs() ? options : slapsOnlyOptions;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.performancetestgurus;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over a ByteBuffer - lets the WSQ decoder read mapped records without copying them
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+final class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if(len == 0) {
+			return 0;
+		}
+		if(!buffer.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,268 @@
+package com.performancetestgurus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only checkpoint log of completed identities - lets a bulk run resume after a crash
+ * without generating finished identities again
+ *
+ * Each entry holds an identity id and the SHA-256 of every output image, followed by a CRC32
+ * of the entry. Opening the log loads all ids into a hash set, so the skip check is O(1) per
+ * identity. An entry torn by a crash is cut off. Only the last entries (the tail) are checked
+ * against the output files, as those are the ones whose outputs may not have reached the disk.
+ *
+ * Command line tool: CheckpointLog log - prints the number of completed identities
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class CheckpointLog implements Closeable {
+
+	private static final long MAGIC = 0x534c4150434b5031L;	// "SLAPCKP1"
+	private static final int HEADER_SIZE = 8;
+	public static final int DEFAULT_TAIL = 64;
+
+	private final FileChannel channel;
+	private final DataOutputStream out;
+	private final Set<String> completed;
+	private final Map<String, byte[][]> tail;
+	private final CRC32 crc = new CRC32();
+	private final MessageDigest sha256 = FingerKey.sha256();
+
+	private CheckpointLog(FileChannel channel, Set<String> completed, Map<String, byte[][]> tail) {
+		this.channel = channel;
+		this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+		this.completed = completed;
+		this.tail = tail;
+	}
+
+	   /**
+	   * open - Opens or creates a checkpoint log, tail of DEFAULT_TAIL entries
+	   *
+	   * @param Path log - checkpoint log file
+	   * @return CheckpointLog log positioned for appending
+	   *
+	   **/
+	public static CheckpointLog open(Path log) throws IOException {
+		return open(log, DEFAULT_TAIL);
+	}
+
+	   /**
+	   * open - Opens or creates a checkpoint log
+	   *
+	   * @param Path log - checkpoint log file
+	   * @param int tailEntries - number of last entries whose outputs are checked by isCompleted(Record)
+	   * @return CheckpointLog log positioned for appending
+	   *
+	   **/
+	public static CheckpointLog open(Path log, int tailEntries) throws IOException {
+		FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			Set<String> completed = new HashSet<>();
+			ArrayDeque<Object[]> last = new ArrayDeque<>();
+			long valid = HEADER_SIZE;
+			if(channel.size() < HEADER_SIZE) {
+				channel.truncate(0);
+				DataOutputStream header = new DataOutputStream(Channels.newOutputStream(channel.position(0)));
+				header.writeLong(MAGIC);
+				header.flush();
+			} else {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+				if(in.readLong() != MAGIC) {
+					throw new IOException("Not a checkpoint log : " + log);
+				}
+				CRC32 crc = new CRC32();
+				try {
+					while(true) {
+						crc.reset();
+						byte[] id = new byte[in.readUnsignedShort()];
+						in.readFully(id);
+						int outputs = in.readUnsignedByte();
+						byte[][] hashes = new byte[SlapResult.THUMB_SLAP + 1][];
+						byte[] entry = new byte[outputs * (1 + FingerKey.LENGTH)];
+						in.readFully(entry);
+						crc.update(id.length >>> 8);
+						crc.update(id.length);
+						crc.update(id);
+						crc.update(outputs);
+						crc.update(entry);
+						if(in.readInt() != (int) crc.getValue()) {
+							break;
+						}
+						for(int i = 0; i < outputs; i++) {
+							int offset = i * (1 + FingerKey.LENGTH);
+							hashes[entry[offset]] = Arrays.copyOfRange(entry, offset + 1, offset + 1 + FingerKey.LENGTH);
+						}
+						String identity = new String(id, StandardCharsets.UTF_8);
+						completed.add(identity);
+						last.addLast(new Object[] {identity, hashes});
+						if(last.size() > tailEntries) {
+							last.removeFirst();
+						}
+						valid += 2 + id.length + 1 + entry.length + 4;
+					}
+				} catch (EOFException | ArrayIndexOutOfBoundsException e) {
+					// torn or damaged entry at the end of the log
+				}
+				if(valid < channel.size()) {
+					System.out.println("Checkpoint log : dropping " + (channel.size() - valid) + " bytes of torn tail");
+					channel.truncate(valid);
+				}
+			}
+			Map<String, byte[][]> tail = new HashMap<>();
+			for(Object[] entry : last) {
+				tail.put((String) entry[0], (byte[][]) entry[1]);
+			}
+			channel.position(channel.size());
+			return new CheckpointLog(channel, completed, tail);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	   /**
+	   * size - Number of completed identities
+	   *
+	   **/
+	public synchronized int size() {
+		return completed.size();
+	}
+
+	   /**
+	   * isCompleted - true if the identity is in the log
+	   *
+	   * @param String id - identity id
+	   *
+	   **/
+	public synchronized boolean isCompleted(String id) {
+		return completed.contains(id);
+	}
+
+	   /**
+	   * isCompleted - true if the identity is in the log, for tail entries only if all outputs
+	   * are still on disk with the logged content
+	   *
+	   * @param Manifest.Record record - identity with its output paths
+	   *
+	   **/
+	public boolean isCompleted(Manifest.Record record) {
+		byte[][] hashes;
+		synchronized(this) {
+			if(!completed.contains(record.getId())) {
+				return false;
+			}
+			hashes = tail.get(record.getId());
+		}
+		if(hashes == null) {
+			return true;
+		}
+		for(int position = 1; position < hashes.length; position++) {
+			if(hashes[position] != null && !matches(record.getOutputPath(position), hashes[position])) {
+				synchronized(this) {
+					completed.remove(record.getId());
+					tail.remove(record.getId());
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(String fileName, byte[] hash) {
+		if(fileName.isEmpty() || !Files.exists(Paths.get(fileName.trim()))) {
+			return false;
+		}
+		byte[] image = App.getBytesFromFile(fileName);
+		return image != null && MessageDigest.isEqual(FingerKey.sha256().digest(image), hash);
+	}
+
+	   /**
+	   * complete - Appends an identity with the hashes of its outputs
+	   *
+	   * The entry is handed to the operating system, call sync to make it durable.
+	   *
+	   * @param String id - identity id
+	   * @param List<GroupCommitWriter.Image> outputs - images written for the identity
+	   *
+	   **/
+	public synchronized void complete(String id, List<GroupCommitWriter.Image> outputs) throws IOException {
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		if(idBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Identity id too long : " + id);
+		}
+		byte[] entry = new byte[outputs.size() * (1 + FingerKey.LENGTH)];
+		for(int i = 0; i < outputs.size(); i++) {
+			GroupCommitWriter.Image image = outputs.get(i);
+			entry[i * (1 + FingerKey.LENGTH)] = (byte) image.position;
+			System.arraycopy(sha256.digest(image.wsq), 0, entry, i * (1 + FingerKey.LENGTH) + 1, FingerKey.LENGTH);
+		}
+		crc.reset();
+		crc.update(idBytes.length >>> 8);
+		crc.update(idBytes.length);
+		crc.update(idBytes);
+		crc.update(outputs.size());
+		crc.update(entry);
+		out.writeShort(idBytes.length);
+		out.write(idBytes);
+		out.writeByte(outputs.size());
+		out.write(entry);
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		completed.add(id);
+	}
+
+	   /**
+	   * sync - Makes the entries appended so far durable
+	   *
+	   **/
+	public synchronized void sync() throws IOException {
+		out.flush();
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.out.println("Usage : CheckpointLog <log>");
+			System.exit(2);
+		}
+		try (CheckpointLog log = open(Paths.get(args[0]))) {
+			System.out.println(log.size() + " completed identities");
+		}
+	}
+}
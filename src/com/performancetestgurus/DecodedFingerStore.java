@@ -0,0 +1,491 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of decoded finger crops - a single indexed file of raw 8 bit pixels
+ * keyed by the WSQ content hash (see FingerKey)
+ *
+ * Repeat runs over the same corpus read the crop straight out of the page cache
+ * (FileChannel.map) instead of decoding the WSQ again.
+ *
+ * File layout:
+ *   header : long magic, int version, int segment shift
+ *   record : int magic, byte[32] key, int width, int height, int crc32 of key, size and pixels,
+ *            byte[width*height] pixels
+ *
+ * The file is split into 1GB segments that are mapped separately. A record never crosses
+ * a segment boundary - the writer leaves a zero filled gap instead, which the reader skips.
+ * A torn record at the end of the file (crash during append) is truncated by the next append.
+ * A damaged record header anywhere else is never truncated: the reader skips to the next
+ * segment, no more records are appended and compact rebuilds the store from the valid records.
+ *
+ * Command line tool:
+ *   DecodedFingerStore verify  store.dfs
+ *   DecodedFingerStore compact store.dfs target.dfs
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class DecodedFingerStore implements Closeable {
+
+	private static final long FILE_MAGIC = 0x534c415044465331L;	// "SLAPDFS1"
+	private static final int VERSION = 2;
+	private static final int FILE_HEADER_SIZE = 16;
+	private static final int RECORD_MAGIC = 0x44465231;			// "DFR1"
+	private static final int RECORD_HEADER_SIZE = 4 + FingerKey.LENGTH + 4 + 4 + 4;
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int ZERO_CHECK_SIZE = 64 * 1024;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final ConcurrentHashMap<FingerKey, Long> index = new ConcurrentHashMap<>();
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long scannedEnd;
+	private volatile boolean damaged;
+
+	private DecodedFingerStore(Path path, FileChannel channel) {
+		this.path = path;
+		this.channel = channel;
+	}
+
+	   /**
+	   * open - Opens (or creates) a decoded finger store and indexes its records
+	   *
+	   * @param Path path - store file
+	   * @return DecodedFingerStore store ready for lookups and appends
+	   *
+	   **/
+	public static DecodedFingerStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		DecodedFingerStore store = new DecodedFingerStore(path, channel);
+		try {
+			store.init();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		return store;
+	}
+
+	private void init() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		FileLock lock = channel.lock();
+		try {
+			if(channel.size() == 0) {
+				header.putLong(FILE_MAGIC).putInt(VERSION).putInt(SEGMENT_SHIFT).flip();
+				writeFully(header, 0);
+			} else {
+				readFully(header, 0);
+				if(header.getLong(0) != FILE_MAGIC || header.getInt(12) != SEGMENT_SHIFT) {
+					throw new IOException("Not a decoded finger store : " + path);
+				}
+				if(header.getInt(8) != VERSION) {
+					throw new IOException("Decoded finger store version " + header.getInt(8) + ", expected " + VERSION
+							+ " - delete it to rebuild : " + path);
+				}
+			}
+			scannedEnd = scan(FILE_HEADER_SIZE, channel.size());
+		} finally {
+			lock.release();
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	   /**
+	   * size - Number of distinct fingers in the store
+	   *
+	   **/
+	public int size() {
+		return index.size();
+	}
+
+	public boolean contains(FingerKey key) {
+		return index.containsKey(key);
+	}
+
+	   /**
+	   * get - Reads a decoded crop without decoding
+	   *
+	   * A record that fails its size check or CRC is dropped from the index so the caller decodes it again.
+	   *
+	   * @param FingerKey key - content hash of the WSQ finger
+	   * @return BufferedImage Grey Scale (TYPE_BYTE_GRAY) crop or null if the finger is not in the store
+	   *
+	   **/
+	public BufferedImage get(FingerKey key) throws IOException {
+		Long offset = index.get(key);
+		if(offset == null) {
+			return null;
+		}
+		ByteBuffer record = segment(offset).duplicate();
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		int width = record.getInt(position + 4 + FingerKey.LENGTH);
+		int height = record.getInt(position + 8 + FingerKey.LENGTH);
+		int crc = record.getInt(position + 12 + FingerKey.LENGTH);
+		if(width <= 0 || height <= 0 || position + RECORD_HEADER_SIZE + (long) width * height > record.capacity()) {
+			index.remove(key, offset);
+			return null;
+		}
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		record.position(position + RECORD_HEADER_SIZE);
+		record.get(pixels);
+		if(crc(key.toBytes(), width, height, pixels) != crc) {
+			index.remove(key, offset);
+			return null;
+		}
+		return image;
+	}
+
+	   /**
+	   * put - Appends a decoded crop to the store
+	   *
+	   * Fingers that are already stored (by this or another process) are not written again.
+	   * Nothing is written to a store with a damaged record header, see compact.
+	   *
+	   * @param FingerKey key - content hash of the WSQ finger
+	   * @param BufferedImage crop - Grey Scale (TYPE_BYTE_GRAY) crop to store
+	   *
+	   **/
+	public void put(FingerKey key, BufferedImage crop) throws IOException {
+		if(damaged || index.containsKey(key)) {
+			return;
+		}
+		int width = crop.getWidth();
+		int height = crop.getHeight();
+		long length = RECORD_HEADER_SIZE + (long) width * height;
+		if(length > SEGMENT_SIZE - FILE_HEADER_SIZE) {
+			throw new IllegalArgumentException("Finger too large for store : " + width + " x " + height);
+		}
+		byte[] pixels = (byte[]) crop.getRaster().getDataElements(0, 0, width, height, null);
+		byte[] keyBytes = key.toBytes();
+
+		ByteBuffer record = ByteBuffer.allocate((int) length);
+		record.putInt(RECORD_MAGIC).put(keyBytes).putInt(width).putInt(height).putInt(crc(keyBytes, width, height, pixels)).put(pixels);
+		record.flip();
+
+		synchronized (this) {
+			FileLock lock = channel.lock();
+			try {
+				long size = channel.size();
+				if(size > scannedEnd) {
+					scannedEnd = scan(scannedEnd, size);
+				}
+				if(damaged) {
+					return;
+				}
+				if(scannedEnd < size) {
+					channel.truncate(scannedEnd);
+				}
+				if(index.containsKey(key)) {
+					return;
+				}
+				long position = scannedEnd;
+				long segmentEnd = ((position >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+				if(position + length > segmentEnd) {
+					position = segmentEnd;		// leave a zero filled gap up to the next segment
+				}
+				writeFully(record, position);
+				index.put(key, position);
+				scannedEnd = position + length;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	   /**
+	   * verify - Checks the CRC of every record in the store
+	   *
+	   * @return Report record counts
+	   *
+	   **/
+	public Report verify() throws IOException {
+		return copyRecords(null);
+	}
+
+	   /**
+	   * compact - Writes the valid records of this store to a new store
+	   *
+	   * Corrupt records, duplicates and segment gaps are dropped.
+	   *
+	   * @param Path target - new store file, must not exist
+	   * @return Report record counts
+	   *
+	   **/
+	public Report compact(Path target) throws IOException {
+		if(Files.exists(target)) {
+			throw new IOException("Compaction target already exists : " + target);
+		}
+		try (DecodedFingerStore compacted = open(target)) {
+			Report report = copyRecords(compacted);
+			compacted.channel.force(true);
+			return report;
+		}
+	}
+
+	private Report copyRecords(DecodedFingerStore target) throws IOException {
+		Report report = new Report();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		long size = channel.size();
+		long position = FILE_HEADER_SIZE;
+		Set<FingerKey> seen = new HashSet<>();
+		while(position < size) {
+			long segmentEnd = ((position >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+			header.clear();
+			if(segmentEnd - position < RECORD_HEADER_SIZE || size - position < RECORD_HEADER_SIZE) {
+				position = segmentEnd;
+				continue;
+			}
+			readFully(header, position);
+			int magic = header.getInt(0);
+			if(magic == 0 && segmentEnd < size) {
+				position = segmentEnd;
+				continue;
+			}
+			byte[] keyBytes = new byte[FingerKey.LENGTH];
+			header.position(4);
+			header.get(keyBytes);
+			int width = header.getInt();
+			int height = header.getInt();
+			int crc = header.getInt();
+			long length = RECORD_HEADER_SIZE + (long) width * height;
+			if(!validHeader(magic, width, height, position, length) || position + length > size) {
+				if(tornTail(magic, width, height, position, length, size)) {
+					report.tornBytes = size - position;
+					break;
+				}
+				report.corrupt++;		// damaged header, the rest of its segment is lost
+				position = segmentEnd;
+				continue;
+			}
+			ByteBuffer pixels = ByteBuffer.allocate(width * height);
+			readFully(pixels, position + RECORD_HEADER_SIZE);
+			FingerKey key = FingerKey.fromBytes(keyBytes);
+			if(crc(keyBytes, width, height, pixels.array()) != crc) {
+				report.corrupt++;
+			} else if(!seen.add(key)) {
+				report.duplicates++;
+			} else {
+				report.records++;
+				if(target != null) {
+					BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+					image.getRaster().setDataElements(0, 0, width, height, pixels.array());
+					target.put(key, image);
+				}
+			}
+			position += length;
+		}
+		return report;
+	}
+
+	private long scan(long from, long to) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		byte[] keyBytes = new byte[FingerKey.LENGTH];
+		long position = from;
+		while(position < to) {
+			long segmentEnd = ((position >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+			if(segmentEnd - position < RECORD_HEADER_SIZE) {
+				if(segmentEnd >= to) {
+					break;
+				}
+				position = segmentEnd;
+				continue;
+			}
+			if(to - position < RECORD_HEADER_SIZE) {
+				break;
+			}
+			header.clear();
+			readFully(header, position);
+			int magic = header.getInt(0);
+			if(magic == 0 && segmentEnd < to) {
+				position = segmentEnd;
+				continue;
+			}
+			header.position(4);
+			header.get(keyBytes);
+			int width = header.getInt();
+			int height = header.getInt();
+			long length = RECORD_HEADER_SIZE + (long) width * height;
+			if(!validHeader(magic, width, height, position, length) || position + length > to) {
+				if(tornTail(magic, width, height, position, length, to)) {
+					break;
+				}
+				if(!damaged) {
+					damaged = true;
+					System.out.println("**** Decoded finger store damaged at offset " + position + ", no more appends - run DecodedFingerStore compact : " + path);
+				}
+				position = segmentEnd;
+				continue;
+			}
+			index.putIfAbsent(FingerKey.fromBytes(keyBytes), position);
+			position += length;
+		}
+		return Math.min(position, to);
+	}
+
+	private static boolean validHeader(int magic, int width, int height, long position, long length) {
+		long segmentEnd = ((position >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+		return magic == RECORD_MAGIC && width > 0 && height > 0 && position + length <= segmentEnd;
+	}
+
+	   /**
+	   * tornTail - Tells an append cut short by a crash from a damaged record header
+	   *
+	   * An append is torn if its valid header claims more bytes than the file has, or if the file
+	   * ends in zeros (the file grew but the record never reached the disk). Only a torn tail may
+	   * be truncated - a damaged header can be followed by valid records.
+	   *
+	   **/
+	private boolean tornTail(int magic, int width, int height, long position, long length, long to) throws IOException {
+		if(validHeader(magic, width, height, position, length)) {
+			return position + length > to;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(ZERO_CHECK_SIZE);
+		for(long from = position; from < to; from += buffer.limit()) {
+			buffer.clear();
+			buffer.limit((int) Math.min(ZERO_CHECK_SIZE, to - from));
+			readFully(buffer, from);
+			while(buffer.hasRemaining()) {
+				if(buffer.get() != 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private MappedByteBuffer segment(long offset) throws IOException {
+		int segment = (int) (offset >>> SEGMENT_SHIFT);
+		MappedByteBuffer[] mapped = segments;
+		if(segment < mapped.length && mapped[segment] != null
+				&& mapped[segment].capacity() > (offset & (SEGMENT_SIZE - 1)) + RECORD_HEADER_SIZE
+				&& mapped[segment].capacity() >= recordEnd(mapped[segment], offset)) {
+			return mapped[segment];
+		}
+		return remap(segment);
+	}
+
+	private static long recordEnd(MappedByteBuffer buffer, long offset) {
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		return position + RECORD_HEADER_SIZE
+				+ (long) buffer.getInt(position + 4 + FingerKey.LENGTH) * buffer.getInt(position + 8 + FingerKey.LENGTH);
+	}
+
+	private synchronized MappedByteBuffer remap(int segment) throws IOException {
+		long start = (long) segment << SEGMENT_SHIFT;
+		long length = Math.min(SEGMENT_SIZE, channel.size() - start);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		MappedByteBuffer[] mapped = segments;
+		if(segment >= mapped.length) {
+			mapped = Arrays.copyOf(mapped, segment + 1);
+		} else {
+			mapped = mapped.clone();
+		}
+		mapped[segment] = buffer;
+		segments = mapped;
+		return buffer;
+	}
+
+	private static int crc(byte[] key, int width, int height, byte[] pixels) {
+		CRC32 crc = new CRC32();
+		crc.update(key, 0, key.length);
+		crc.update(ByteBuffer.allocate(8).putInt(width).putInt(height).array(), 0, 8);
+		crc.update(pixels, 0, pixels.length);
+		return (int) crc.getValue();
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException("Unexpected end of store : " + path);
+			}
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments = new MappedByteBuffer[0];
+		channel.close();
+	}
+
+	   /**
+	   * Report - Record counts from verify and compact
+	   *
+	   **/
+	public static final class Report {
+		public long records;
+		public long corrupt;
+		public long duplicates;
+		public long tornBytes;
+
+		public boolean isClean() {
+			return corrupt == 0 && tornBytes == 0;
+		}
+
+		@Override
+		public String toString() {
+			return "records=" + records + " corrupt=" + corrupt + " duplicates=" + duplicates + " tornBytes=" + tornBytes;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length > 1 && !Files.exists(Paths.get(args[1]))) {
+			System.out.println("Store not found : " + args[1]);
+			System.exit(2);
+		}
+		if(args.length == 2 && args[0].equals("verify")) {
+			try (DecodedFingerStore store = open(Paths.get(args[1]))) {
+				Report report = store.verify();
+				System.out.println(report);
+				System.exit(report.isClean() ? 0 : 1);
+			}
+		}
+		if(args.length == 3 && args[0].equals("compact")) {
+			try (DecodedFingerStore store = open(Paths.get(args[1]))) {
+				System.out.println(store.compact(Paths.get(args[2])));
+			}
+			return;
+		}
+		System.out.println("Usage : DecodedFingerStore verify <store> | compact <store> <target>");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,302 @@
+package com.performancetestgurus;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming writer of feeder files for load tools (JMeter CSV Data Set, Gatling feeders)
+ *
+ * Usage: FeederWriter manifest output [--format csv|ndjson] [--gzip] [--fingers] [--workers n]
+ *                     [--window n] [--bitrate f] [--ppi n] [--synthetic n [--seed s] [--prefix p]]
+ *
+ * One row per identity with the base64 WSQ of slaps 13, 14 and 15 and, with --fingers, of the
+ * re-encoded fingers 1 to 10:
+ *   csv    - header id,finger13,finger14,finger15[,finger01..finger10], one line per identity
+ *   ndjson - {"id":"..","finger13":"..",...} per line
+ * Missing images are empty fields (csv) or null (ndjson). An output ending in .gz is gzipped,
+ * as is any output with --gzip.
+ *
+ * Without --synthetic the rows are the identities of the manifest. With --synthetic n they are
+ * synthetic identities 0 to n-1 drawn from the finger pools of the manifest (see
+ * SyntheticIdentities), composed from fingers decoded once when the pools are built.
+ *
+ * Identities are generated in parallel by --workers threads but written in source order.
+ * At most --window identities are in flight, so memory use does not grow with the output.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class FeederWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int[] SLAPS = {SlapResult.RIGHT_SLAP, SlapResult.LEFT_SLAP, SlapResult.THUMB_SLAP};
+
+	   /**
+	   * Format - Layout of the rows
+	   *
+	   **/
+	public enum Format { CSV, NDJSON }
+
+	private final OutputStream out;
+	private final Format format;
+	private final boolean includeFingers;
+	private long rows;
+
+	   /**
+	   * FeederWriter - Opens a feeder file, writes the CSV header
+	   *
+	   * @param Path output - feeder file
+	   * @param Format format - CSV or NDJSON
+	   * @param boolean gzip - gzip the output
+	   * @param boolean includeFingers - add the re-encoded fingers 1 to 10 to every row
+	   *
+	   **/
+	public FeederWriter(Path output, Format format, boolean gzip, boolean includeFingers) throws IOException {
+		OutputStream file = Files.newOutputStream(output);
+		this.out = gzip ? new BufferedOutputStream(new GZIPOutputStream(file, BUFFER_SIZE), BUFFER_SIZE)
+				: new BufferedOutputStream(file, BUFFER_SIZE);
+		this.format = format;
+		this.includeFingers = includeFingers;
+		if(format == Format.CSV) {
+			StringBuilder header = new StringBuilder("id,finger13,finger14,finger15");
+			if(includeFingers) {
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					header.append(String.format(",finger%02d", position));
+				}
+			}
+			write(header.append('\n').toString());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			usage();
+		}
+		Path output = Paths.get(args[1]);
+		Format format = Format.CSV;
+		boolean gzip = output.toString().endsWith(".gz");
+		boolean fingers = false;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int window = 0;
+		long synthetic = 0;
+		long seed = 0;
+		String prefix = "syn";
+		SlapOptions.Builder options = new SlapOptions.Builder();
+		for(int i = 2; i < args.length; i++) {
+			switch(args[i]) {
+			case "--format":
+				format = Format.valueOf(value(args, ++i).toUpperCase());
+				break;
+			case "--gzip":
+				gzip = true;
+				break;
+			case "--fingers":
+				fingers = true;
+				break;
+			case "--workers":
+				workers = Integer.parseInt(value(args, ++i));
+				break;
+			case "--window":
+				window = Integer.parseInt(value(args, ++i));
+				break;
+			case "--bitrate":
+				options.bitrate(Float.parseFloat(value(args, ++i)));
+				break;
+			case "--ppi":
+				options.ppi(Integer.parseInt(value(args, ++i)));
+				break;
+			case "--synthetic":
+				synthetic = Long.parseLong(value(args, ++i));
+				break;
+			case "--seed":
+				seed = Long.parseLong(value(args, ++i));
+				break;
+			case "--prefix":
+				prefix = value(args, ++i);
+				break;
+			default:
+				usage();
+			}
+		}
+		long start = System.nanoTime();
+		SlapOptions slapOptions = options.reEncodeFingers(fingers).build();
+		if(synthetic > 0) {
+			SyntheticIdentities identities = SyntheticIdentities.fromManifest(Paths.get(args[0]), seed, prefix, workers);
+			if(synthetic > identities.size()) {
+				System.out.println("**** Only " + identities.size() + " distinct identities in the pools");
+				System.exit(1);
+			}
+			try (FeederWriter writer = new FeederWriter(output, format, gzip, fingers)) {
+				Stream<Supplier<SlapResult>> results = LongStream.range(0, synthetic)
+						.mapToObj(identity -> () -> identities.generate(identity, slapOptions));
+				writer.writeAll(results.iterator(), workers, window > 0 ? window : workers * 4);
+				System.out.println(String.format("%d rows written to %s in %.2fs", writer.rows, output, (System.nanoTime() - start) / 1e9));
+			}
+			return;
+		}
+		try (FeederWriter writer = new FeederWriter(output, format, gzip, fingers);
+				Stream<Manifest.Record> records = Manifest.records(Paths.get(args[0]))) {
+			Stream<Supplier<SlapResult>> results = records.map(record -> () -> generate(record.readTenPrint(), slapOptions));
+			writer.writeAll(results.iterator(), workers, window > 0 ? window : workers * 4);
+			System.out.println(String.format("%d rows written to %s in %.2fs", writer.rows, output, (System.nanoTime() - start) / 1e9));
+		}
+	}
+
+	private static SlapResult generate(TenPrint tenPrint, SlapOptions options) {
+		try {
+			return SlapGen.generate(tenPrint, options);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String value(String[] args, int i) {
+		if(i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.out.println("Usage : FeederWriter <manifest> <output> [--format csv|ndjson] [--gzip] [--fingers] [--workers n]");
+		System.out.println("                     [--window n] [--bitrate f] [--ppi n] [--synthetic n [--seed s] [--prefix p]]");
+		System.exit(2);
+	}
+
+	   /**
+	   * writeAll - Generates and writes one row per identity, in source order
+	   *
+	   * The suppliers run on the worker threads, only the rows are written on the calling thread.
+	   *
+	   * @param Iterator<Supplier<SlapResult>> results - generators of the identities, e.g. SlapGen.generate
+	   * 				of manifest records or SyntheticIdentities.generate
+	   * @param int workers - generator threads
+	   * @param int window - maximum number of identities in flight
+	   *
+	   **/
+	public void writeAll(Iterator<Supplier<SlapResult>> results, int workers, int window) throws IOException {
+		if(window <= 0) {
+			throw new IllegalArgumentException("Window must be greater than 0");
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		ArrayDeque<CompletableFuture<SlapResult>> inFlight = new ArrayDeque<>(window);
+		try {
+			while(results.hasNext() || !inFlight.isEmpty()) {
+				while(results.hasNext() && inFlight.size() < window) {
+					inFlight.addLast(CompletableFuture.supplyAsync(results.next(), pool));
+				}
+				write(SlapGen.join(inFlight.removeFirst()));
+			}
+		} finally {
+			inFlight.forEach(future -> future.cancel(false));
+			pool.shutdownNow();
+		}
+	}
+
+	   /**
+	   * write - Writes the row of one identity
+	   *
+	   * @param SlapResult result - slaps and (optionally) re-encoded fingers of the identity
+	   *
+	   **/
+	public void write(SlapResult result) throws IOException {
+		if(format == Format.CSV) {
+			write(csvField(result.getId()));
+			for(int position : SLAPS) {
+				write(",");
+				base64(result.getFinger(position));
+			}
+			if(includeFingers) {
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					write(",");
+					base64(result.getFinger(position));
+				}
+			}
+			write("\n");
+		} else {
+			write("{\"id\":" + jsonString(result.getId()));
+			for(int position : SLAPS) {
+				jsonField(position, result.getFinger(position));
+			}
+			if(includeFingers) {
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					jsonField(position, result.getFinger(position));
+				}
+			}
+			write("}\n");
+		}
+		rows++;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	private void jsonField(int position, byte[] wsq) throws IOException {
+		write(String.format(",\"finger%02d\":", position));
+		if(wsq == null) {
+			write("null");
+		} else {
+			write("\"");
+			base64(wsq);
+			write("\"");
+		}
+	}
+
+	private void base64(byte[] wsq) throws IOException {
+		if(wsq != null) {
+			out.write(Base64.getEncoder().encode(wsq));
+		}
+	}
+
+	private void write(String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String csvField(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for(char c : value.toCharArray()) {
+			if(c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if(c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,85 @@
+package com.performancetestgurus;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Content hash of a WSQ finger - used to look up decoded fingers without decoding them again
+ *
+ * The key is the SHA-256 digest of the WSQ bytes, so two identical files always map to the
+ * same key regardless of their file name or location.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class FingerKey {
+
+	public static final int LENGTH = 32;
+
+	private final byte[] digest;
+	private final int hash;
+
+	private FingerKey(byte[] digest) {
+		this.digest = digest;
+		this.hash = Arrays.hashCode(digest);
+	}
+
+	   /**
+	   * of - Computes the key of a WSQ finger
+	   *
+	   * @param byte[] wsq - finger in wsq format as byte array
+	   * @return FingerKey SHA-256 content key
+	   *
+	   **/
+	public static FingerKey of(byte[] wsq) {
+		return new FingerKey(sha256().digest(wsq));
+	}
+
+	   /**
+	   * fromBytes - Rebuilds a key from a stored digest
+	   *
+	   * @param byte[] digest - 32 byte SHA-256 digest
+	   * @return FingerKey key wrapping a copy of the digest
+	   *
+	   **/
+	public static FingerKey fromBytes(byte[] digest) {
+		if(digest.length != LENGTH) {
+			throw new IllegalArgumentException("Finger key must be " + LENGTH + " bytes");
+		}
+		return new FingerKey(digest.clone());
+	}
+
+	public byte[] toBytes() {
+		return digest.clone();
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof FingerKey && Arrays.equals(digest, ((FingerKey) o).digest);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(LENGTH * 2);
+		for(byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
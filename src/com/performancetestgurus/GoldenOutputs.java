@@ -0,0 +1,274 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jnbis.Bitmap;
+import org.jnbis.WSQDecoder;
+
+import cz.muni.fi.lazon.wsq.Encoder;
+
+/**
+ * Golden output regression harness - proves a performance change to the encoder or to the slap
+ * builders leaves the WSQ bitstream byte-identical
+ *
+ * Usage: GoldenOutputs verify [golden-wsq.txt]
+ *        GoldenOutputs record [golden-wsq.txt]
+ *
+ * A fixed SyntheticFingerprints corpus (3 sizes including an odd one, 2 seeds and a ten print) is encoded:
+ *   corpus.*    - SHA-256 of the raw pixels and of the ten print fingers, a change here is a
+ *                 corpus change, not an encoder change
+ *   encode.*    - cz.muni.fi.lazon.wsq.Encoder at bit rates 0.75, 1.5 and 2.2
+ *   rightSlap, leftSlap, thumbSlap - the three public slap builders
+ *   generate.*  - SlapGen.generate at bit rates 0.75 and 2.2, slaps and re-encoded fingers
+ * Every output is hashed with SHA-256 and decoded with org.jnbis.WSQDecoder; the PSNR against the
+ * uncompressed image must not drop below the bound of its bit rate.
+ *
+ * verify compares with the golden file and exits with 1 on any changed hash, missing output or
+ * PSNR below its bound. Run it before and after every optimization of EncoderImpl or SlapGen.
+ * record rewrites the golden file - only for an intended bitstream change, and the PSNR values
+ * in the diff of the golden file are part of the review.
+ *
+ * The encoder uses Math.log and Math.pow, so goldens recorded on one JVM are not guaranteed on
+ * a JVM of another vendor or architecture - record and verify on the same build machine.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class GoldenOutputs {
+
+	private static final String DEFAULT_GOLDENS = "golden-wsq.txt";
+	private static final int[][] SIZES = {{400, 500}, {256, 320}, {545, 623}};
+	private static final long[] SEEDS = {1, 2};
+	private static final float[] BITRATES = {0.75f, 1.5f, 2.2f};
+	private static final float[] SLAP_BITRATES = {0.75f, 2.2f};
+	private static final long TEN_PRINT_SEED = 100;
+	private static final double NO_PSNR = -1;
+
+	private GoldenOutputs() {
+	}
+
+	   /**
+	   * Output - hash and quality of one golden output
+	   *
+	   **/
+	static final class Output {
+		final String sha256;
+		final double psnr;		// NO_PSNR for raw pixels
+		final double minimumPsnr;
+
+		Output(String sha256, double psnr, double minimumPsnr) {
+			this.sha256 = sha256;
+			this.psnr = psnr;
+			this.minimumPsnr = minimumPsnr;
+		}
+
+		boolean belowBound() {
+			return psnr != NO_PSNR && psnr < minimumPsnr;
+		}
+
+		String psnrText() {
+			return psnr == NO_PSNR ? "-" : String.format(Locale.ROOT, "%.3f", psnr);
+		}
+	}
+
+	   /**
+	   * minimumPsnr - Lowest acceptable PSNR of a decoded output
+	   *
+	   * @param float bitrate - WSQ bit rate of the output
+	   * @return double bound in dB
+	   *
+	   **/
+	static double minimumPsnr(float bitrate) {
+		if(bitrate < 1) {
+			return 27;	// the sensor noise of the corpus caps the PSNR, about 29 dB at 0.75 and 35 dB at 2.2
+		}
+		return bitrate < 2 ? 31 : 33;
+	}
+
+	   /**
+	   * compute - Generates the corpus and encodes, decodes and hashes every output
+	   *
+	   * @return Map<String, Output> outputs by name, in a fixed order
+	   *
+	   **/
+	static Map<String, Output> compute() throws IOException {
+		Map<String, Output> outputs = new LinkedHashMap<>();
+		for(int[] size : SIZES) {
+			SyntheticFingerprints generator = new SyntheticFingerprints.Builder().size(size[0], size[1]).build();
+			for(long seed : SEEDS) {
+				String name = size[0] + "x" + size[1] + ".seed" + seed;
+				byte[] pixels = pixels(generator.generate(seed));
+				outputs.put("corpus." + name, new Output(sha256(pixels), NO_PSNR, NO_PSNR));
+				for(float bitrate : BITRATES) {
+					byte[] wsq = new Encoder.Builder(size[0], size[1]).quality(bitrate).build().encode(pixels);
+					outputs.put("encode." + name + "." + bitrate, output(wsq, pixels, bitrate));
+				}
+			}
+		}
+
+		SyntheticFingerprints generator = new SyntheticFingerprints.Builder().build();
+		byte[][] fingers = new byte[TenPrint.FINGER_COUNT][];
+		BufferedImage[] decoded = new BufferedImage[TenPrint.FINGER_COUNT];
+		for(int i = 0; i < fingers.length; i++) {
+			fingers[i] = generator.encode(TEN_PRINT_SEED + i + 1, 2.2f);
+			decoded[i] = SlapGen.decodeFinger(fingers[i]);
+			outputs.put(String.format("corpus.finger%02d", i + 1), new Output(sha256(fingers[i]), NO_PSNR, NO_PSNR));
+		}
+		BufferedImage[] slaps = SlapGen.composeSlaps(decoded);
+		float defaultBitrate = SlapOptions.DEFAULT.getBitrate();
+		outputs.put("rightSlap", output(SlapGen.rightSlap(fingers[1], fingers[2], fingers[3], fingers[4]), pixels(slaps[0]), defaultBitrate));
+		outputs.put("leftSlap", output(SlapGen.leftSlap(fingers[6], fingers[7], fingers[8], fingers[9]), pixels(slaps[1]), defaultBitrate));
+		outputs.put("thumbSlap", output(SlapGen.thumbSlap(fingers[0], fingers[5]), pixels(slaps[2]), defaultBitrate));
+
+		TenPrint tenPrint = new TenPrint("golden", fingers);
+		for(float bitrate : SLAP_BITRATES) {
+			SlapResult result = SlapGen.generate(tenPrint, new SlapOptions.Builder().bitrate(bitrate).build());
+			for(int slap = SlapResult.RIGHT_SLAP; slap <= SlapResult.THUMB_SLAP; slap++) {
+				outputs.put("generate." + bitrate + "." + slap,
+						output(result.getFinger(slap), pixels(slaps[slap - SlapResult.RIGHT_SLAP]), bitrate));
+			}
+			for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+				outputs.put(String.format("generate.%s.%02d", bitrate, position),
+						output(result.getFinger(position), pixels(decoded[position - 1]), bitrate));
+			}
+		}
+		return outputs;
+	}
+
+	private static Output output(byte[] wsq, byte[] original, float bitrate) throws IOException {
+		if(wsq == null) {
+			throw new IOException("No output");
+		}
+		Bitmap bitmap = WSQDecoder.decode(new ByteArrayInputStream(wsq));
+		return new Output(sha256(wsq), psnr(original, bitmap.getPixels()), minimumPsnr(bitrate));
+	}
+
+	private static byte[] pixels(BufferedImage image) {
+		return (byte[]) image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+	}
+
+	   /**
+	   * psnr - Peak signal to noise ratio of two 8 bit images of the same size
+	   *
+	   * @param byte[] original - uncompressed pixels
+	   * @param byte[] decoded - decoded pixels
+	   * @return double PSNR in dB, Double.POSITIVE_INFINITY for identical images
+	   *
+	   **/
+	static double psnr(byte[] original, byte[] decoded) {
+		if(original.length != decoded.length) {
+			throw new IllegalArgumentException("Decoded image has " + decoded.length + " pixels, expected " + original.length);
+		}
+		double squares = 0;
+		for(int i = 0; i < original.length; i++) {
+			int difference = (original[i] & 0xFF) - (decoded[i] & 0xFF);
+			squares += difference * difference;
+		}
+		return squares == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 * original.length / squares);
+	}
+
+	private static String sha256(byte[] data) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for(byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1 || args.length > 2 || !(args[0].equals("verify") || args[0].equals("record"))) {
+			System.out.println("Usage : GoldenOutputs verify|record [" + DEFAULT_GOLDENS + "]");
+			System.exit(2);
+		}
+		Path goldens = Paths.get(args.length > 1 ? args[1] : DEFAULT_GOLDENS);
+		long start = System.nanoTime();
+		Map<String, Output> outputs = compute();
+		int failures = args[0].equals("record") ? record(goldens, outputs) : verify(goldens, outputs);
+		System.out.println(String.format("Golden     : %d outputs, %d failures in %.2fs", outputs.size(), failures, (System.nanoTime() - start) / 1e9));
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static int record(Path goldens, Map<String, Output> outputs) throws IOException {
+		int failures = 0;
+		for(Map.Entry<String, Output> entry : outputs.entrySet()) {
+			if(entry.getValue().belowBound()) {
+				System.out.println("**** " + entry.getKey() + " PSNR " + entry.getValue().psnrText() + " below " + entry.getValue().minimumPsnr + " dB");
+				failures++;
+			}
+		}
+		if(failures > 0) {
+			System.out.println("**** Goldens not recorded");
+			return failures;
+		}
+		try (BufferedWriter writer = Files.newBufferedWriter(goldens, StandardCharsets.UTF_8)) {
+			writer.write("# WSQ golden outputs - com.performancetestgurus.GoldenOutputs record, do not edit\r\n");
+			writer.write("# name sha256 psnr\r\n");
+			for(Map.Entry<String, Output> entry : outputs.entrySet()) {
+				writer.write(entry.getKey() + " " + entry.getValue().sha256 + " " + entry.getValue().psnrText() + "\r\n");
+			}
+		}
+		System.out.println(outputs.size() + " goldens written to " + goldens);
+		return 0;
+	}
+
+	private static int verify(Path goldens, Map<String, Output> outputs) throws IOException {
+		Map<String, String[]> expected = new LinkedHashMap<>();
+		for(String line : Files.readAllLines(goldens, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if(fields.length != 3) {
+				throw new IOException("Malformed golden line : " + line);
+			}
+			expected.put(fields[0], fields);
+		}
+		List<String> failed = new ArrayList<>();
+		for(Map.Entry<String, Output> entry : outputs.entrySet()) {
+			String name = entry.getKey();
+			Output output = entry.getValue();
+			String[] golden = expected.remove(name);
+			if(golden == null) {
+				failed.add(name + " has no golden value");
+			} else if(!golden[1].equals(output.sha256)) {
+				failed.add(name + " changed : sha256 " + output.sha256 + " expected " + golden[1]
+						+ ", PSNR " + output.psnrText() + " expected " + golden[2]);
+			}
+			if(output.belowBound()) {
+				failed.add(name + " PSNR " + output.psnrText() + " below " + output.minimumPsnr + " dB");
+			}
+		}
+		for(String name : expected.keySet()) {
+			failed.add(name + " golden output no longer produced");
+		}
+		for(String failure : failed) {
+			System.out.println("**** " + failure);
+		}
+		return failed.size();
+	}
+}
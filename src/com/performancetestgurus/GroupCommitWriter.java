@@ -0,0 +1,429 @@
+package com.performancetestgurus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous output writer with group commit - producers hand over images and carry on,
+ * a dedicated writer thread writes them and syncs them to disk in batches
+ *
+ * A batch is synced when the bytes written since the last sync reach syncBytes or the oldest
+ * unsynced write is syncMillis old, whichever comes first. After a sync the tags of the batch
+ * are passed to the durable handler, in submit order. Only then are the images known to be on
+ * disk, so checkpoints should be taken from the durable handler and not from submit.
+ *
+ * Targets:
+ *   files     - one file per image as in the UI (.wsq raw, .txt base64). Separate files still
+ *               need an fsync each, the writer defers them to the end of the batch. The
+ *               directories of the files are synced too, once per batch, so new directory
+ *               entries survive a crash.
+ *   container - appends to a SlapContainer, one fsync per batch
+ *
+ * An IOException fails the current batch and the writer carries on. Any other failure of the
+ * target or of a handler stops the writer thread: the current batch and everything still queued
+ * are passed to the failure handler, and submit and close throw the failure from then on.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class GroupCommitWriter<T> implements Closeable {
+
+	private static final Object END = new Object();
+	private static final int MAX_OPEN_FILES = 256;
+	private static final long OFFER_MILLIS = 100;
+
+	   /**
+	   * Image - One output image
+	   *
+	   **/
+	public static final class Image {
+		final String id;
+		final int position;
+		final String fileName;
+		final byte[] wsq;
+
+		   /**
+		   * @param String id - identity id
+		   * @param int position - 13, 14, 15 for slaps or 1 to 10 for re-encoded fingers
+		   * @param String fileName - output file, used by the files target
+		   * @param byte[] wsq - image in wsq format as byte array
+		   **/
+		public Image(String id, int position, String fileName, byte[] wsq) {
+			this.id = id;
+			this.position = position;
+			this.fileName = fileName;
+			this.wsq = wsq;
+		}
+	}
+
+	   /**
+	   * Target - Where the writer thread puts images
+	   *
+	   **/
+	public interface Target {
+		void write(Image image) throws IOException;
+
+		   /**
+		   * sync - Makes everything written so far durable
+		   **/
+		void sync() throws IOException;
+	}
+
+	private static final class Submission<T> {
+		final T tag;
+		final List<Image> images;
+
+		Submission(T tag, List<Image> images) {
+			this.tag = tag;
+			this.images = images;
+		}
+	}
+
+	private final Target target;
+	private final long syncBytes;
+	private final long syncNanos;
+	private final Consumer<List<T>> durableHandler;
+	private final BiConsumer<List<T>, IOException> failureHandler;
+	private final BlockingQueue<Object> queue;
+	private final Thread thread;
+	private volatile Throwable failure;
+
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder imagesWritten = new LongAdder();
+	private final LongAdder syncs = new LongAdder();
+	private final LongAdder syncNanosTotal = new LongAdder();
+
+	private GroupCommitWriter(Builder<T> builder) {
+		this.target = builder.target;
+		this.syncBytes = builder.syncBytes;
+		this.syncNanos = TimeUnit.MILLISECONDS.toNanos(builder.syncMillis);
+		this.durableHandler = builder.durableHandler;
+		this.failureHandler = builder.failureHandler;
+		this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+		this.thread = new Thread(this::run, "slapgen-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public static class Builder<T> {
+		private final Target target;
+		private long syncBytes = 64L * 1024 * 1024;
+		private long syncMillis = 1000;
+		private int queueCapacity = 1024;
+		private Consumer<List<T>> durableHandler = tags -> {};
+		private BiConsumer<List<T>, IOException> failureHandler = (tags, e) -> e.printStackTrace();
+
+		   /**
+		   * @param Target target - files() or container(writer)
+		   **/
+		public Builder(Target target) {
+			this.target = target;
+		}
+
+		   /**
+		   * @param long syncBytes - sync after this many bytes, 0 syncs after every submission
+		   * @param long syncMillis - sync at the latest this long after the first unsynced write
+		   **/
+		public Builder<T> syncEvery(long syncBytes, long syncMillis) {
+			if(syncBytes < 0 || syncMillis < 0) {
+				throw new IllegalArgumentException("Sync thresholds must not be negative");
+			}
+			this.syncBytes = syncBytes;
+			this.syncMillis = syncMillis;
+			return this;
+		}
+
+		   /**
+		   * @param int queueCapacity - submissions waiting for the writer thread before submit blocks
+		   **/
+		public Builder<T> queueCapacity(int queueCapacity) {
+			if(queueCapacity <= 0) {
+				throw new IllegalArgumentException("Queue capacity must be greater than 0");
+			}
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		   /**
+		   * @param Consumer<List<T>> durableHandler - called on the writer thread with the tags of each synced batch
+		   **/
+		public Builder<T> onDurable(Consumer<List<T>> durableHandler) {
+			this.durableHandler = durableHandler;
+			return this;
+		}
+
+		   /**
+		   * @param BiConsumer<List<T>, IOException> failureHandler - called with the tags of a batch that could not be written
+		   **/
+		public Builder<T> onFailure(BiConsumer<List<T>, IOException> failureHandler) {
+			this.failureHandler = failureHandler;
+			return this;
+		}
+
+		   /**
+		   * build - Starts the writer thread
+		   *
+		   **/
+		public GroupCommitWriter<T> build() {
+			return new GroupCommitWriter<>(this);
+		}
+	}
+
+	   /**
+	   * submit - Queues the images of one tag, blocks while the queue is full
+	   *
+	   * @param T tag - passed to the durable or failure handler once the images are synced
+	   * @param List<Image> images - images to write
+	   * @throws IOException if the writer thread has failed, the tag is not passed to any handler
+	   *
+	   **/
+	public void submit(T tag, List<Image> images) throws IOException, InterruptedException {
+		Submission<T> submission = new Submission<>(tag, images);
+		while(!queue.offer(submission, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkAlive();
+		}
+		// the writer thread records its failure before it drains the queue, so a submission it
+		// missed is still in the queue here
+		if(failure != null && queue.remove(submission)) {
+			checkAlive();
+		}
+	}
+
+	private void checkAlive() throws IOException {
+		Throwable failed = failure;
+		if(failed != null) {
+			throw new IOException("Writer thread failed", failed);
+		}
+		if(!thread.isAlive()) {
+			throw new IllegalStateException("Writer is closed");
+		}
+	}
+
+	   /**
+	   * close - Writes and syncs everything submitted so far and stops the writer thread
+	   *
+	   * @throws IOException if the writer thread has failed
+	   *
+	   **/
+	@Override
+	public void close() throws IOException {
+		try {
+			while(thread.isAlive() && !queue.offer(END, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+				// the queue is full, wait for the writer thread or for its failure
+			}
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing writer");
+		}
+		if(failure != null) {
+			throw new IOException("Writer thread failed", failure);
+		}
+	}
+
+	@Override
+	public String toString() {
+		long count = syncs.sum();
+		return String.format("%d images, %.1f MB in %d syncs (mean sync %.2fms)", imagesWritten.sum(),
+				bytesWritten.sum() / (1024.0 * 1024.0), count, count == 0 ? 0 : syncNanosTotal.sum() / 1e6 / count);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void run() {
+		List<T> pending = new ArrayList<>();
+		long pendingBytes = 0;
+		long firstPending = 0;
+		try {
+			while(true) {
+				Object taken = pending.isEmpty() ? queue.take()
+						: queue.poll(Math.max(0, firstPending + syncNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if(taken == END) {
+					break;
+				}
+				if(taken != null) {
+					Submission<T> submission = (Submission<T>) taken;
+					if(pending.isEmpty()) {
+						firstPending = System.nanoTime();
+					}
+					pending.add(submission.tag);
+					try {
+						for(Image image : submission.images) {
+							target.write(image);
+							pendingBytes += image.wsq.length;
+							bytesWritten.add(image.wsq.length);
+							imagesWritten.increment();
+						}
+					} catch (IOException e) {
+						// the batch is not known to be durable any more - fail all of it
+						List<T> batch = new ArrayList<>(pending);
+						pending.clear();
+						pendingBytes = 0;
+						failureHandler.accept(batch, e);
+						continue;
+					}
+				}
+				if(!pending.isEmpty() && (pendingBytes >= syncBytes || System.nanoTime() - firstPending >= syncNanos)) {
+					commit(pending);
+					pendingBytes = 0;
+				}
+			}
+			commit(pending);
+		} catch (Throwable e) {
+			if(e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			failure = e;
+			abandon(pending, e);
+		}
+	}
+
+	   /**
+	   * abandon - Fails the current batch and every queued submission after the writer thread failed
+	   *
+	   **/
+	@SuppressWarnings("unchecked")
+	private void abandon(List<T> pending, Throwable cause) {
+		List<Object> queued = new ArrayList<>();
+		queue.drainTo(queued);
+		for(Object taken : queued) {
+			if(taken != END) {
+				pending.add(((Submission<T>) taken).tag);
+			}
+		}
+		if(pending.isEmpty()) {
+			return;
+		}
+		try {
+			failureHandler.accept(new ArrayList<>(pending), new IOException("Writer thread failed", cause));
+		} catch (Throwable e) {
+			cause.addSuppressed(e);
+		}
+		pending.clear();
+	}
+
+	private void commit(List<T> pending) {
+		if(pending.isEmpty()) {
+			return;
+		}
+		List<T> batch = new ArrayList<>(pending);
+		long start = System.nanoTime();
+		try {
+			target.sync();
+		} catch (IOException e) {
+			pending.clear();
+			failureHandler.accept(batch, e);
+			return;
+		}
+		pending.clear();	// left in place if sync fails with anything else, so the failure is reported
+		syncNanosTotal.add(System.nanoTime() - start);
+		syncs.increment();
+		durableHandler.accept(batch);
+	}
+
+	   /**
+	   * files - Target writing one file per image, .wsq raw and .txt base64 encoded
+	   *
+	   **/
+	public static Target files() {
+		return new Target() {
+			private final List<FileChannel> unsynced = new ArrayList<>();
+			private final Set<Path> directories = new LinkedHashSet<>();
+
+			@Override
+			public void write(Image image) throws IOException {
+				String fileName = image.fileName.trim();
+				String type = fileName.length() > 4 ? fileName.substring(fileName.length() - 3).toUpperCase() : "";
+				byte[] contents;
+				if(type.equals("TXT")) {
+					contents = Base64.getEncoder().encode(image.wsq);
+				} else if(type.equals("WSQ")) {
+					contents = image.wsq;
+				} else {
+					throw new IOException("Unknown filetype - Please use TXT/WSQ : " + fileName);
+				}
+				if(unsynced.size() >= MAX_OPEN_FILES) {
+					sync();
+				}
+				Path path = Paths.get(fileName).toAbsolutePath();
+				FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				unsynced.add(channel);
+				directories.add(path.getParent());
+				ByteBuffer buffer = ByteBuffer.wrap(contents);
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			@Override
+			public void sync() throws IOException {
+				IOException failure = null;
+				for(FileChannel channel : unsynced) {
+					try (FileChannel closing = channel) {
+						if(failure == null) {
+							closing.force(false);
+						}
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+				unsynced.clear();
+				if(failure == null) {
+					for(Path directory : directories) {
+						try {
+							Util.forceDirectory(directory);
+						} catch (IOException e) {
+							failure = e;
+							break;
+						}
+					}
+				}
+				directories.clear();
+				if(failure != null) {
+					throw failure;
+				}
+			}
+		};
+	}
+
+	   /**
+	   * container - Target appending to a slap container
+	   *
+	   * @param SlapContainer.Writer writer - open container, closed by the caller after the writer
+	   *
+	   **/
+	public static Target container(SlapContainer.Writer writer) {
+		return new Target() {
+			@Override
+			public void write(Image image) throws IOException {
+				writer.append(image.id, image.position, image.wsq);
+			}
+
+			@Override
+			public void sync() throws IOException {
+				writer.sync();
+			}
+		};
+	}
+}
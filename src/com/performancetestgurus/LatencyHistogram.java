@@ -0,0 +1,166 @@
+package com.performancetestgurus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket latency histogram - log scale buckets with 8 linear sub buckets per power of two
+ * 
+ * Values are recorded in nanoseconds with a relative error of at most 12.5%. 
+ * Recording is lock free (one LongAdder per bucket) so many threads can record into the same
+ * histogram without contending.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram() {
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	   /**
+	   * record - Records one latency
+	   * 
+	   * @param long nanos - latency in nanoseconds, negative values are recorded as 0
+	   * 
+	   **/
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets[bucket(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	   /**
+	   * recordSince - Records the time elapsed since a System.nanoTime() start
+	   * 
+	   * @param long startNanos - System.nanoTime() at the start of the operation
+	   * @return long elapsed nanoseconds
+	   * 
+	   **/
+	public long recordSince(long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		record(elapsed);
+		return elapsed;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	   /**
+	   * getPercentileNanos - Returns the upper bound of the bucket holding a percentile
+	   * 
+	   * @param double percentile - percentile from 0 to 100, e.g. 99.9
+	   * @return long latency in nanoseconds (0 if nothing was recorded)
+	   * 
+	   **/
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= Math.max(1, rank)) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	   /**
+	   * getBucketCounts - Snapshot of the bucket counts, index i counts values up to getBucketUpperBound(i)
+	   * 
+	   **/
+	public long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	public static long getBucketUpperBound(int bucket) {
+		return upperBound(bucket);
+	}
+
+	public void reset() {
+		for(LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	private static int bucket(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+		return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	   /**
+	   * toString - count, mean and percentiles in milliseconds
+	   * 
+	   **/
+	@Override
+	public String toString() {
+		return "count=" + getCount() 
+				+ " mean=" + millis((long) getMeanNanos()) + "ms"
+				+ " p50=" + millis(getPercentileNanos(50)) + "ms"
+				+ " p90=" + millis(getPercentileNanos(90)) + "ms"
+				+ " p99=" + millis(getPercentileNanos(99)) + "ms"
+				+ " p99.9=" + millis(getPercentileNanos(99.9)) + "ms"
+				+ " max=" + millis(getMaxNanos()) + "ms";
+	}
+}
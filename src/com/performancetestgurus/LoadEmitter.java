@@ -0,0 +1,508 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Open-loop load generator - emits freshly composed slaps at a target rate to a sink
+ *
+ * Usage: LoadEmitter manifest --rate r --duration s [--start-rate r] [--ramp s] [--sink sink]
+ *                    [--buffer n] [--generators n] [--senders n] [--augment seed]
+ *        LoadEmitter stub [--port n] [--delay ms] - local HTTP stand-in for the system under test
+ *
+ * Sinks:
+ *   file:path        - slaps appended back to back to a file (readable with WsqArchive)
+ *   pipe:path        - the same, written to a named pipe
+ *   -                - the same, written to standard out
+ *   http://host/path - each slap POSTed as application/octet-stream
+ *
+ * The fingers of the manifest are decoded once. Generator threads then compose and encode
+ * slaps (13, 14 and 15 of each identity in turn) into a pre-generation buffer, which is
+ * filled before the clock starts. Send times follow the rate profile (linear ramp from
+ * --start-rate to --rate over --ramp seconds, then constant) and never depend on how fast
+ * earlier sends completed, so a slow sink or a generation hiccup does not lower the offered load.
+ *
+ * Response times are measured from the intended send time, not from the actual one, so they
+ * include any time a send waited behind the schedule (coordinated omission correction).
+ * The summary also shows the uncorrected service time and the generation time per slap.
+ *
+ * A slap that cannot be composed or encoded is counted as a generation error and skipped. A
+ * generator gives up after MAX_GENERATOR_FAILURES failures in a row or on an Error, and the run
+ * stops with an IOException once no generator is left.
+ *
+ * --augment gives every emitted slap set its own seeded variant of the fingers (see Augmentation),
+ * so a small manifest yields an endless stream of distinct slaps instead of repeating itself.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public class LoadEmitter {
+
+	private static final int SLAPS = 3;
+	private static final int MAX_GENERATOR_FAILURES = 100;
+	private static final long POLL_MILLIS = 10;
+
+	   /**
+	   * Sink - Receiver of the emitted slaps, must be safe for use by several threads
+	   *
+	   **/
+	public interface Sink extends Closeable {
+		void send(String id, int position, byte[] wsq) throws IOException;
+	}
+
+	private static final class Emission {
+		final String id;
+		final int position;
+		final byte[] wsq;
+
+		Emission(String id, int position, byte[] wsq) {
+			this.id = id;
+			this.position = position;
+			this.wsq = wsq;
+		}
+	}
+
+	private final List<String> ids = new ArrayList<>();
+	private final List<BufferedImage[]> fingers = new ArrayList<>();
+	private final SlapOptions options;
+	private final BlockingQueue<Emission> buffer;
+	private final AtomicLong nextSlap = new AtomicLong();
+	private volatile boolean generating = true;
+
+	private final LatencyHistogram generation = new LatencyHistogram();
+	private final LatencyHistogram service = new LatencyHistogram();
+	private final LatencyHistogram response = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder underruns = new LongAdder();
+	private final LongAdder generationErrors = new LongAdder();
+	private final AtomicInteger liveGenerators = new AtomicInteger();
+	private volatile Throwable generatorFailure;
+
+	   /**
+	   * LoadEmitter - Decodes the fingers of every identity of a manifest
+	   *
+	   * @param Path manifest - CSV or TSV manifest file, only the finger columns are used
+	   * @param SlapOptions options - options of the generated slaps
+	   * @param int bufferSize - slaps generated ahead of the schedule
+	   *
+	   **/
+	public LoadEmitter(Path manifest, SlapOptions options, int bufferSize) throws IOException {
+		this.options = options;
+		this.buffer = new ArrayBlockingQueue<>(bufferSize);
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			for(Manifest.Record record : (Iterable<Manifest.Record>) records::iterator) {
+				TenPrint tenPrint = record.readTenPrint();
+				BufferedImage[] decoded = new BufferedImage[TenPrint.FINGER_COUNT];
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					byte[] finger = tenPrint.getFinger(position);
+					decoded[position - 1] = finger == null ? null : SlapGen.decodeFinger(finger);
+				}
+				ids.add(record.getId());
+				fingers.add(decoded);
+			}
+		}
+		if(ids.isEmpty()) {
+			throw new IllegalArgumentException("Manifest has no identities : " + manifest);
+		}
+		if(!hasFingers()) {
+			// every finger belongs to a slap, so without any finger no slap can be generated
+			throw new IllegalArgumentException("Manifest has no fingers for any slap : " + manifest);
+		}
+	}
+
+	private boolean hasFingers() {
+		for(BufferedImage[] identity : fingers) {
+			for(BufferedImage finger : identity) {
+				if(finger != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("stub")) {
+			stub(args);
+			return;
+		}
+		if(args.length == 0) {
+			usage();
+		}
+		double rate = 0;
+		double startRate = -1;
+		double ramp = 0;
+		double duration = 0;
+		String sink = "-";
+		int bufferSize = 100;
+		int generators = Runtime.getRuntime().availableProcessors();
+		int senders = 64;
+		SlapOptions.Builder options = new SlapOptions.Builder();
+		for(int i = 1; i < args.length; i++) {
+			if(i + 1 >= args.length) {
+				usage();
+			}
+			switch(args[i]) {
+			case "--rate":
+				rate = Double.parseDouble(args[++i]);
+				break;
+			case "--start-rate":
+				startRate = Double.parseDouble(args[++i]);
+				break;
+			case "--ramp":
+				ramp = Double.parseDouble(args[++i]);
+				break;
+			case "--duration":
+				duration = Double.parseDouble(args[++i]);
+				break;
+			case "--sink":
+				sink = args[++i];
+				break;
+			case "--buffer":
+				bufferSize = Integer.parseInt(args[++i]);
+				break;
+			case "--generators":
+				generators = Integer.parseInt(args[++i]);
+				break;
+			case "--senders":
+				senders = Integer.parseInt(args[++i]);
+				break;
+			case "--augment":
+				options.augmentation(new Augmentation.Builder().build()).seed(Long.parseLong(args[++i]));
+				break;
+			default:
+				usage();
+			}
+		}
+		if(rate <= 0 || duration <= 0) {
+			usage();
+		}
+		SlapGenMetrics.register();
+		LoadEmitter emitter = new LoadEmitter(Paths.get(args[0]), options.build(), bufferSize);
+		try (Sink target = sink(sink)) {
+			emitter.run(target, startRate < 0 ? rate : startRate, rate, ramp, duration, generators, senders);
+		} finally {
+			emitter.printSummary(System.err);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage : LoadEmitter <manifest> --rate r --duration s [--start-rate r] [--ramp s] [--sink sink]");
+		System.err.println("                    [--buffer n] [--generators n] [--senders n] [--augment seed]");
+		System.err.println("        LoadEmitter stub [--port n] [--delay ms]");
+		System.err.println("Sinks : file:path, pipe:path, - (standard out), http://host:port/path");
+		System.exit(2);
+	}
+
+	   /**
+	   * run - Emits slaps following a linear ramp, then a constant rate
+	   *
+	   * @param Sink sink - receiver of the slaps
+	   * @param double startRate - slaps per second at the start of the ramp
+	   * @param double rate - slaps per second after the ramp
+	   * @param double rampSeconds - length of the ramp
+	   * @param double durationSeconds - length of the whole run, including the ramp
+	   * @param int generators - threads composing and encoding slaps
+	   * @param int senders - maximum number of sends in flight
+	   * @throws IOException if every generator failed, after the slaps already generated were sent
+	   *
+	   **/
+	public void run(Sink sink, double startRate, double rate, double rampSeconds, double durationSeconds,
+			int generators, int senders) throws IOException, InterruptedException {
+		List<Thread> generatorThreads = new ArrayList<>();
+		liveGenerators.set(generators);
+		for(int i = 0; i < generators; i++) {
+			Thread thread = new Thread(this::generate, "slapgen-generator-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			generatorThreads.add(thread);
+		}
+		while(buffer.remainingCapacity() > 0 && liveGenerators.get() > 0) {
+			Thread.sleep(POLL_MILLIS);	// fill the buffer before the clock starts
+		}
+		ExecutorService sendPool = Executors.newFixedThreadPool(senders, runnable -> {
+			Thread thread = new Thread(runnable, "slapgen-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long start = System.nanoTime();
+		long end = start + (long) (durationSeconds * 1e9);
+		long scheduled = 0;
+		boolean starved = false;
+		while(true) {
+			long intended = start + (long) (sendTime(scheduled, startRate, rate, rampSeconds) * 1e9);
+			if(intended >= end) {
+				break;
+			}
+			long wait = intended - System.nanoTime();
+			if(wait > 0) {
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+			Emission emission = buffer.poll();
+			if(emission == null) {
+				underruns.increment();
+				while(emission == null && liveGenerators.get() > 0) {
+					emission = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				if(emission == null && (emission = buffer.poll()) == null) {
+					starved = true;		// every generator failed
+					break;
+				}
+			}
+			Emission send = emission;
+			sendPool.execute(() -> send(sink, send, intended));
+			scheduled++;
+		}
+		generating = false;
+		sendPool.shutdown();
+		sendPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		buffer.clear();
+		for(Thread thread : generatorThreads) {
+			thread.interrupt();
+		}
+		if(starved) {
+			throw new IOException("All " + generators + " generators failed, run stopped after " + scheduled + " slaps", generatorFailure);
+		}
+	}
+
+	   /**
+	   * sendTime - Intended send time of a slap, the time at which the integral of the rate profile reaches its index
+	   *
+	   * During the ramp the rate is r(t) = startRate + (rate - startRate) * t / ramp, so n slaps are due once
+	   * startRate * t + (rate - startRate) * t^2 / (2 * ramp) = n. Stepping by 1 / r(t) instead would wait
+	   * 1 / startRate for the second slap, forever with a start rate of 0.
+	   *
+	   * @param long index - number of slaps sent before this one
+	   * @param double startRate - slaps per second at the start of the ramp, 0 or more
+	   * @param double rate - slaps per second after the ramp, more than 0
+	   * @param double rampSeconds - length of the ramp
+	   * @return double seconds from the start of the run
+	   *
+	   **/
+	static double sendTime(long index, double startRate, double rate, double rampSeconds) {
+		if(index <= 0) {
+			return 0;
+		}
+		double rampSlaps = rampSeconds > 0 ? (startRate + rate) * rampSeconds / 2 : 0;
+		if(index >= rampSlaps) {
+			return Math.max(rampSeconds, 0) + (index - rampSlaps) / rate;
+		}
+		// root of a * t^2 + startRate * t - index = 0, in the form without cancellation for a near 0
+		double a = (rate - startRate) / (2 * rampSeconds);
+		return 2 * index / (startRate + Math.sqrt(Math.max(startRate * startRate + 4 * a * index, 0)));
+	}
+
+	private void generate() {
+		int failures = 0;
+		try {
+			while(generating) {
+				long slap = nextSlap.getAndIncrement();
+				int identity = (int) ((slap / SLAPS) % ids.size());
+				int which = (int) (slap % SLAPS);
+				long start = System.nanoTime();
+				byte[] wsq;
+				try {
+					Augmentation augmentation = options.getAugmentation();
+					wsq = SlapGen.encodeSlap(fingers.get(identity), which,
+							augmentation == null ? null : augmentation.variant(options.getSeed() + slap / SLAPS), options);
+					if(wsq == null) {
+						continue;
+					}
+				} catch (RuntimeException e) {
+					generationFailed(ids.get(identity), e);
+					if(++failures >= MAX_GENERATOR_FAILURES) {
+						System.err.println("**** Generator " + Thread.currentThread().getName() + " stopped after " + failures + " failures in a row");
+						return;
+					}
+					continue;
+				}
+				failures = 0;
+				generation.recordSince(start);
+				buffer.put(new Emission(ids.get(identity), SlapResult.RIGHT_SLAP + which, wsq));
+			}
+		} catch (InterruptedException e) {
+			// run finished
+		} catch (Error e) {
+			generationFailed(null, e);
+			System.err.println("**** Generator " + Thread.currentThread().getName() + " stopped");
+		} finally {
+			liveGenerators.decrementAndGet();
+		}
+	}
+
+	private void generationFailed(String id, Throwable e) {
+		generatorFailure = e;
+		generationErrors.increment();
+		if(generationErrors.sum() <= 10) {
+			System.err.println("**** Generation failed" + (id == null ? "" : " for " + id) + " : " + e);
+		}
+	}
+
+	private void send(Sink sink, Emission emission, long intended) {
+		long start = System.nanoTime();
+		try {
+			sink.send(emission.id, emission.position, emission.wsq);
+			long now = System.nanoTime();
+			service.record(now - start);
+			response.record(now - intended);
+			sent.increment();
+		} catch (IOException | RuntimeException e) {
+			errors.increment();
+			if(errors.sum() <= 10) {
+				System.err.println("**** Send failed : " + e);
+			}
+		}
+	}
+
+	public void printSummary(PrintStream out) {
+		out.println(String.format("Sent       : %d slaps, %d errors, %d buffer underruns", sent.sum(), errors.sum(), underruns.sum()));
+		out.println("Generation : " + generation + ", " + generationErrors.sum() + " errors");
+		out.println("Service    : " + service);
+		out.println("Response   : " + response + " (from intended send time)");
+	}
+
+	   /**
+	   * sink - Creates a sink from its command line form
+	   *
+	   * @param String sink - file:path, pipe:path, - or an http(s) URL
+	   * @return Sink sink
+	   *
+	   **/
+	public static Sink sink(String sink) throws IOException {
+		if(sink.equals("-")) {
+			return streamSink(System.out);
+		}
+		if(sink.startsWith("file:")) {
+			return streamSink(Files.newOutputStream(Paths.get(sink.substring(5)), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+		}
+		if(sink.startsWith("pipe:")) {
+			return streamSink(Files.newOutputStream(Paths.get(sink.substring(5)), StandardOpenOption.WRITE));
+		}
+		if(sink.startsWith("http://") || sink.startsWith("https://")) {
+			return httpSink(URI.create(sink));
+		}
+		throw new IllegalArgumentException("Unknown sink : " + sink);
+	}
+
+	private static Sink streamSink(OutputStream stream) {
+		OutputStream out = new BufferedOutputStream(stream, 1024 * 1024);
+		return new Sink() {
+			@Override
+			public synchronized void send(String id, int position, byte[] wsq) throws IOException {
+				out.write(wsq);
+				out.flush();
+			}
+
+			@Override
+			public synchronized void close() throws IOException {
+				out.close();
+			}
+		};
+	}
+
+	private static Sink httpSink(URI uri) {
+		HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		return new Sink() {
+			@Override
+			public void send(String id, int position, byte[] wsq) throws IOException {
+				HttpRequest request = HttpRequest.newBuilder(uri)
+						.header("Content-Type", "application/octet-stream")
+						.header("X-Identity", id)
+						.header("X-Finger-Position", String.valueOf(position))
+						.POST(HttpRequest.BodyPublishers.ofByteArray(wsq))
+						.build();
+				try {
+					HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+					if(response.statusCode() / 100 != 2) {
+						throw new IOException("HTTP " + response.statusCode() + " from " + uri);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while sending to " + uri, e);
+				}
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static void stub(String[] args) throws IOException {
+		int port = 8090;
+		long delay = 0;
+		for(int i = 1; i < args.length; i++) {
+			if(i + 1 >= args.length) {
+				usage();
+			}
+			switch(args[i]) {
+			case "--port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "--delay":
+				delay = Long.parseLong(args[++i]);
+				break;
+			default:
+				usage();
+			}
+		}
+		long delayMillis = delay;
+		LongAdder received = new LongAdder();
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			try {
+				exchange.getRequestBody().readAllBytes();
+				if(delayMillis > 0) {
+					Thread.sleep(delayMillis);
+				}
+				received.increment();
+				exchange.sendResponseHeaders(200, -1);
+			} catch (InterruptedException e) {
+				exchange.sendResponseHeaders(503, -1);
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		System.err.println("Stub listening on port " + port + (delay > 0 ? " with " + delay + "ms delay" : ""));
+		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(
+				() -> System.err.println("Stub received " + received.sum()), 10, 10, TimeUnit.SECONDS);
+	}
+}
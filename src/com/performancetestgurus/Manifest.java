@@ -0,0 +1,231 @@
+package com.performancetestgurus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Manifest of tenprints for bulk generation - one CSV or TSV line per identity
+ * 
+ * Columns (the delimiter is a tab if the line contains one, a comma otherwise):
+ *   id, finger01 .. finger10, finger13, finger14, finger15 [, reEncoded01 .. reEncoded10]
+ * 
+ * Finger columns are paths to .wsq or base64 .txt files, as in the UI.
+ * Empty columns are missing fingers / outputs that are not written.
+ * A column that contains the delimiter or a quote is quoted as in RFC 4180 ("a,b" and "say ""x""").
+ * Quoted columns keep their spaces and cannot span lines.
+ * Blank lines, lines starting with # and a header line starting with "id" are ignored.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+public final class Manifest {
+
+	private static final int SLAP_COLUMNS = 3;
+	private static final int MIN_COLUMNS = 1 + TenPrint.FINGER_COUNT + SLAP_COLUMNS;
+	private static final int MAX_COLUMNS = MIN_COLUMNS + TenPrint.FINGER_COUNT;
+
+	private Manifest() {}
+
+	   /**
+	   * records - Reads a manifest lazily
+	   * 
+	   * @param Path manifest - CSV or TSV manifest file
+	   * @return Stream<Record> records in file order - close the stream to close the file
+	   * 
+	   **/
+	public static Stream<Record> records(Path manifest) throws IOException {
+		Stream<String> lines = Files.lines(manifest);
+		return lines
+				.map(String::trim)
+				.filter(line -> !line.isEmpty() && !line.startsWith("#") && !isHeader(line))
+				.map(Record::parse);
+	}
+
+	private static boolean isHeader(String line) {
+		return line.regionMatches(true, 0, "id", 0, 2) 
+				&& (line.length() == 2 || line.charAt(2) == ',' || line.charAt(2) == '\t');
+	}
+
+	   /**
+	   * quote - Quotes a column for a CSV manifest line if it needs it
+	   * 
+	   * @param String column - id or path
+	   * @return String the column, quoted if it contains a comma or a quote
+	   * 
+	   **/
+	public static String quote(String column) {
+		if(column.indexOf(',') < 0 && column.indexOf('"') < 0) {
+			return column;
+		}
+		return '"' + column.replace("\"", "\"\"") + '"';
+	}
+
+	   /**
+	   * split - Splits a manifest line into its columns
+	   * 
+	   * @param String line - CSV or TSV line
+	   * @param char delimiter - comma or tab
+	   * @return List<String> columns, unquoted columns trimmed
+	   * 
+	   **/
+	static List<String> split(String line, char delimiter) {
+		List<String> columns = new ArrayList<>();
+		int i = 0;
+		while(true) {
+			while(i < line.length() && line.charAt(i) == ' ') {
+				i++;
+			}
+			if(i < line.length() && line.charAt(i) == '"') {
+				StringBuilder column = new StringBuilder();
+				i++;
+				while(true) {
+					int quote = line.indexOf('"', i);
+					if(quote < 0) {
+						throw new IllegalArgumentException("Unterminated quoted column in manifest line : " + line);
+					}
+					column.append(line, i, quote);
+					i = quote + 1;
+					if(i < line.length() && line.charAt(i) == '"') {
+						column.append('"');
+						i++;
+					} else {
+						break;
+					}
+				}
+				while(i < line.length() && line.charAt(i) == ' ') {
+					i++;
+				}
+				if(i < line.length() && line.charAt(i) != delimiter) {
+					throw new IllegalArgumentException("Text after quoted column in manifest line : " + line);
+				}
+				columns.add(column.toString());
+			} else {
+				int end = line.indexOf(delimiter, i);
+				String value = line.substring(i, end < 0 ? line.length() : end);
+				if(value.indexOf('"') >= 0) {
+					throw new IllegalArgumentException("Quote in unquoted column of manifest line : " + line);
+				}
+				columns.add(value.trim());
+				i = end < 0 ? line.length() : end;
+			}
+			if(i >= line.length()) {
+				return columns;
+			}
+			i++;	// delimiter
+		}
+	}
+
+	   /**
+	   * Record - One identity of a manifest
+	   * 
+	   **/
+	public static final class Record {
+		private final String id;
+		private final String[] columns;
+
+		private Record(String id, String[] columns) {
+			this.id = id;
+			this.columns = columns;
+		}
+
+		   /**
+		   * parse - Parses one manifest line
+		   * 
+		   * @param String line - CSV or TSV line
+		   * @return Record parsed record
+		   * 
+		   **/
+		public static Record parse(String line) {
+			List<String> columns = split(line, line.indexOf('\t') >= 0 ? '\t' : ',');
+			if(columns.size() < MIN_COLUMNS || columns.size() > MAX_COLUMNS) {
+				throw new IllegalArgumentException("Manifest line must have " + MIN_COLUMNS + " to " + MAX_COLUMNS 
+						+ " columns, got " + columns.size() + " : " + line);
+			}
+			String[] padded = new String[MAX_COLUMNS];
+			for(int i = 0; i < MAX_COLUMNS; i++) {
+				padded[i] = i < columns.size() ? columns.get(i) : "";
+			}
+			if(padded[0].isEmpty()) {
+				throw new IllegalArgumentException("Manifest line has no identity id : " + line);
+			}
+			return new Record(padded[0], padded);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		   /**
+		   * getFingerPath - Input file of a finger
+		   * 
+		   * @param int position - finger position 1 to 10
+		   * @return String path or empty string if the finger is missing
+		   * 
+		   **/
+		public String getFingerPath(int position) {
+			if(position < 1 || position > TenPrint.FINGER_COUNT) {
+				throw new IllegalArgumentException("Finger position must be 1 to " + TenPrint.FINGER_COUNT + " : " + position);
+			}
+			return columns[position];
+		}
+
+		   /**
+		   * getOutputPath - Output file of a slap or re-encoded finger
+		   * 
+		   * @param int position - 13, 14, 15 for slaps or 1 to 10 for re-encoded fingers
+		   * @return String path or empty string if the output is not wanted
+		   * 
+		   **/
+		public String getOutputPath(int position) {
+			if(position >= SlapResult.RIGHT_SLAP && position <= SlapResult.THUMB_SLAP) {
+				return columns[TenPrint.FINGER_COUNT + 1 + position - SlapResult.RIGHT_SLAP];
+			}
+			if(position < 1 || position > TenPrint.FINGER_COUNT) {
+				throw new IllegalArgumentException("Unknown output position : " + position);
+			}
+			return columns[MIN_COLUMNS + position - 1];
+		}
+
+		   /**
+		   * hasReEncodedOutputs - true if any re-encoded finger output is set
+		   * 
+		   **/
+		public boolean hasReEncodedOutputs() {
+			for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+				if(!getOutputPath(position).isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		   /**
+		   * readTenPrint - Reads the input fingers of the record
+		   * 
+		   * @return TenPrint fingers read with the UI file conventions (.wsq or base64 .txt)
+		   * 
+		   **/
+		public TenPrint readTenPrint() {
+			byte[][] fingers = new byte[TenPrint.FINGER_COUNT][];
+			for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+				String path = getFingerPath(position);
+				if(!path.isEmpty()) {
+					fingers[position - 1] = App.getBytesFromFile(path);
+					if(fingers[position - 1] == null) {
+						throw new UncheckedIOException(new IOException("Unable to read finger " + position + " of " + id + " : " + path));
+					}
+				}
+			}
+			return new TenPrint(id, fingers);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.performancetestgurus;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for WSQ encodes - each encode reserves its estimated peak working set from
+ * a global memory budget before it starts
+ *
+ * The encoder holds several double[] and int[] copies of the image while it works, about
+ * BYTES_PER_PIXEL bytes per pixel in total (roughly 55 MB for a 1600x1500 slap). Encodes
+ * that do not fit into the remaining budget wait, for at most maxWaitMillis, and are then
+ * rejected with a RejectedExecutionException. A burst of requests therefore queues or fails
+ * fast instead of running the JVM out of heap.
+ *
+ * The budget is a fair weighted semaphore with one permit per KB, so waiting encodes are
+ * admitted in arrival order and a large encode is not starved by small ones.
+ *
+ * Install with SlapGen.setMemoryBudget.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class MemoryBudget {
+
+	public static final int BYTES_PER_PIXEL = 24;
+	private static final long FIXED_OVERHEAD = 256 * 1024;
+	private static final int KB = 1024;
+
+	private final Semaphore permits;
+	private final int budgetKb;
+	private final long maxWaitNanos;
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LatencyHistogram waits = new LatencyHistogram();
+
+	   /**
+	   * @param long budgetBytes - memory shared by all running encodes
+	   * @param long maxWaitMillis - longest an encode waits for memory before it is rejected, 0 rejects at once
+	   **/
+	public MemoryBudget(long budgetBytes, long maxWaitMillis) {
+		if(budgetBytes < KB || budgetBytes / KB > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Memory budget must be between 1 KB and 2 TB : " + budgetBytes);
+		}
+		if(maxWaitMillis < 0) {
+			throw new IllegalArgumentException("Maximum wait must not be negative");
+		}
+		this.budgetKb = (int) (budgetBytes / KB);
+		this.permits = new Semaphore(budgetKb, true);
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+
+	   /**
+	   * estimate - Peak working set of encoding an image
+	   *
+	   * @param int width - image width
+	   * @param int height - image height
+	   * @return long estimated bytes
+	   *
+	   **/
+	public static long estimate(int width, int height) {
+		return (long) width * height * BYTES_PER_PIXEL + FIXED_OVERHEAD;
+	}
+
+	   /**
+	   * reserve - Waits until the encode of an image fits into the budget
+	   *
+	   * An image larger than the whole budget waits for the whole budget, so it runs on its own.
+	   *
+	   * @param int width - image width
+	   * @param int height - image height
+	   * @return Reservation memory to give back when the encode has finished
+	   * @throws RejectedExecutionException if the memory is not available within the maximum wait
+	   *
+	   **/
+	public Reservation reserve(int width, int height) {
+		int kb = (int) Math.min(budgetKb, (estimate(width, height) + KB - 1) / KB);
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(kb, maxWaitNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		waits.recordSince(start);
+		if(!acquired) {
+			rejected.increment();
+			throw new RejectedExecutionException(String.format("Memory budget exhausted - %dx%d encode needs %d KB, %d of %d KB free",
+					width, height, kb, permits.availablePermits(), budgetKb));
+		}
+		admitted.increment();
+		return new Reservation(kb);
+	}
+
+	   /**
+	   * Reservation - Memory held by one running encode, released by close
+	   *
+	   **/
+	public final class Reservation implements AutoCloseable {
+		private int kb;
+
+		private Reservation(int kb) {
+			this.kb = kb;
+		}
+
+		@Override
+		public void close() {
+			if(kb > 0) {
+				permits.release(kb);
+				kb = 0;
+			}
+		}
+	}
+
+	public long getBudgetBytes() {
+		return (long) budgetKb * KB;
+	}
+
+	public long getUsedBytes() {
+		return (long) (budgetKb - permits.availablePermits()) * KB;
+	}
+
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public LatencyHistogram getWaits() {
+		return waits;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("used=%dMB/%dMB waiting=%d admitted=%d rejected=%d wait %s",
+				getUsedBytes() >> 20, getBudgetBytes() >> 20, getWaiting(), getAdmitted(), getRejected(), waits);
+	}
+}
@@ -0,0 +1,297 @@
+package com.performancetestgurus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Staged producer-consumer pipeline - each stage has its own worker threads and a bounded
+ * input queue
+ *
+ * Items flow through the stages in order. A full queue blocks the stage in front of it
+ * (and finally submit), so a slow stage slows down its producers instead of letting them
+ * buffer unbounded input. I/O bound and CPU bound stages can be sized independently, so
+ * a disk stall in one stage does not leave the CPU stages idle while they have queued work.
+ *
+ * An item that fails in a stage is handed to the failure handler and leaves the pipeline.
+ * Errors (e.g. an OutOfMemoryError in an encode) fail the item the same way, so the stage
+ * threads keep running and finish always returns.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class Pipeline<T> {
+
+	private static final Object END = new Object();
+
+	   /**
+	   * Stage - Work done by one stage on one item
+	   *
+	   **/
+	public interface Stage<T> {
+		void process(T item) throws Exception;
+	}
+
+	private final List<StageRunner> stages;
+	private final BiConsumer<T, Throwable> failureHandler;
+	private final CountDownLatch finished;
+	private final long startNanos = System.nanoTime();
+
+	private Pipeline(Builder<T> builder) {
+		if(builder.stages.isEmpty()) {
+			throw new IllegalArgumentException("A pipeline needs at least one stage");
+		}
+		this.failureHandler = builder.failureHandler;
+		List<StageRunner> runners = new ArrayList<>();
+		for(Builder.StageSpec<T> spec : builder.stages) {
+			runners.add(new StageRunner(spec));
+		}
+		this.stages = Collections.unmodifiableList(runners);
+		this.finished = new CountDownLatch(stages.get(stages.size() - 1).threads);
+		for(int i = 0; i < stages.size(); i++) {
+			stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null);
+		}
+	}
+
+	public static class Builder<T> {
+		private final List<StageSpec<T>> stages = new ArrayList<>();
+		private BiConsumer<T, Throwable> failureHandler = (item, e) -> e.printStackTrace();
+
+		private static final class StageSpec<T> {
+			final String name;
+			final int threads;
+			final int queueCapacity;
+			final Stage<T> work;
+
+			StageSpec(String name, int threads, int queueCapacity, Stage<T> work) {
+				this.name = name;
+				this.threads = threads;
+				this.queueCapacity = queueCapacity;
+				this.work = work;
+			}
+		}
+
+		   /**
+		   * @param String name - stage name used for threads and metrics
+		   * @param int threads - worker threads of the stage
+		   * @param int queueCapacity - capacity of the stage input queue
+		   * @param Stage<T> work - work done on each item
+		   **/
+		public Builder<T> stage(String name, int threads, int queueCapacity, Stage<T> work) {
+			if(threads <= 0) {
+				throw new IllegalArgumentException("Stage threads must be greater than 0 : " + name);
+			}
+			if(queueCapacity <= 0) {
+				throw new IllegalArgumentException("Stage queue capacity must be greater than 0 : " + name);
+			}
+			stages.add(new StageSpec<>(name, threads, queueCapacity, work));
+			return this;
+		}
+
+		   /**
+		   * @param BiConsumer<T, Throwable> failureHandler - called with items that failed in a stage
+		   **/
+		public Builder<T> onFailure(BiConsumer<T, Throwable> failureHandler) {
+			this.failureHandler = failureHandler;
+			return this;
+		}
+
+		   /**
+		   * build - Starts the stage threads
+		   *
+		   **/
+		public Pipeline<T> build() {
+			return new Pipeline<>(this);
+		}
+	}
+
+	   /**
+	   * submit - Hands an item to the first stage, blocks while its queue is full
+	   *
+	   * @param T item - work item
+	   *
+	   **/
+	public void submit(T item) throws InterruptedException {
+		stages.get(0).put(item);
+	}
+
+	   /**
+	   * finish - Waits for all submitted items to pass through the pipeline and stops the threads
+	   *
+	   **/
+	public void finish() throws InterruptedException {
+		StageRunner first = stages.get(0);
+		for(int i = 0; i < first.threads; i++) {
+			first.queue.put(END);
+		}
+		finished.await();
+	}
+
+	   /**
+	   * getMetrics - Snapshot of the per stage metrics
+	   *
+	   **/
+	public List<StageMetrics> getMetrics() {
+		long elapsed = System.nanoTime() - startNanos;
+		List<StageMetrics> metrics = new ArrayList<>(stages.size());
+		for(StageRunner stage : stages) {
+			metrics.add(new StageMetrics(stage, elapsed));
+		}
+		return metrics;
+	}
+
+	   /**
+	   * StageMetrics - Queue depth, throughput and utilization of one stage
+	   *
+	   * The mean and maximum queue depth are sampled whenever an item is put into the queue of
+	   * the stage, so they describe the run up to the snapshot, not just the moment of it.
+	   *
+	   **/
+	public static final class StageMetrics {
+		public final String name;
+		public final int threads;
+		public final int queueDepth;
+		public final double meanQueueDepth;
+		public final int maxQueueDepth;
+		public final int queueCapacity;
+		public final long processed;
+		public final long failed;
+		public final double utilization;
+		public final long blockedNanos;
+
+		private StageMetrics(Pipeline<?>.StageRunner stage, long elapsedNanos) {
+			name = stage.name;
+			threads = stage.threads;
+			queueDepth = stage.queue.size();
+			long samples = stage.depthSamples.sum();
+			meanQueueDepth = samples == 0 ? 0 : stage.depthTotal.sum() / (double) samples;
+			maxQueueDepth = stage.maxDepth.get();
+			queueCapacity = stage.queueCapacity;
+			processed = stage.processed.sum();
+			failed = stage.failed.sum();
+			utilization = elapsedNanos == 0 ? 0 : stage.busyNanos.sum() / ((double) elapsedNanos * threads);
+			blockedNanos = stage.blockedNanos.sum();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-8s threads=%d queue mean=%.1f max=%d/%d processed=%d failed=%d utilization=%.0f%% blocked=%.2fs",
+					name, threads, meanQueueDepth, maxQueueDepth, queueCapacity, processed, failed, utilization * 100, blockedNanos / 1e9);
+		}
+	}
+
+	private final class StageRunner {
+		final String name;
+		final int threads;
+		final int queueCapacity;
+		final Stage<T> work;
+		final BlockingQueue<Object> queue;
+		final AtomicInteger running;
+		final LongAdder processed = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final LongAdder busyNanos = new LongAdder();
+		final LongAdder blockedNanos = new LongAdder();
+		final LongAdder depthSamples = new LongAdder();
+		final LongAdder depthTotal = new LongAdder();
+		final AtomicInteger maxDepth = new AtomicInteger();
+
+		StageRunner(Builder.StageSpec<T> spec) {
+			name = spec.name;
+			threads = spec.threads;
+			queueCapacity = spec.queueCapacity;
+			work = spec.work;
+			queue = new ArrayBlockingQueue<>(spec.queueCapacity);
+			running = new AtomicInteger(spec.threads);
+		}
+
+		void put(Object item) throws InterruptedException {
+			queue.put(item);
+			if(item != END) {
+				int depth = queue.size();
+				depthSamples.increment();
+				depthTotal.add(depth);
+				maxDepth.accumulateAndGet(depth, Math::max);
+			}
+		}
+
+		void start(StageRunner next) {
+			for(int i = 0; i < threads; i++) {
+				Thread thread = new Thread(() -> run(next), "slapgen-" + name + "-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void run(StageRunner next) {
+			try {
+				while(true) {
+					Object taken = queue.take();
+					if(taken == END) {
+						break;
+					}
+					T item = (T) taken;
+					long start = System.nanoTime();
+					try {
+						work.process(item);
+						processed.increment();
+					} catch (Throwable e) {
+						failed.increment();
+						fail(item, e);
+						continue;
+					} finally {
+						busyNanos.add(System.nanoTime() - start);
+					}
+					if(next != null) {
+						long blocked = System.nanoTime();
+						next.put(item);
+						blockedNanos.add(System.nanoTime() - blocked);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				// the last thread of a stage ends the next one however it stopped, so finish never hangs
+				if(running.decrementAndGet() == 0 && next != null) {
+					for(int i = 0; i < next.threads; i++) {
+						endUninterruptibly(next);
+					}
+				}
+				if(next == null) {
+					finished.countDown();
+				}
+			}
+		}
+
+		private void fail(T item, Throwable e) {
+			try {
+				failureHandler.accept(item, e);
+			} catch (Throwable handlerFailure) {
+				handlerFailure.printStackTrace();
+			}
+		}
+
+		private void endUninterruptibly(StageRunner next) {
+			boolean interrupted = false;
+			while(true) {
+				try {
+					next.queue.put(END);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
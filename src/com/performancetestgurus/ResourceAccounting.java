@@ -0,0 +1,269 @@
+package com.performancetestgurus;
+
+import java.beans.ConstructorProperties;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import cz.muni.fi.lazon.wsq.Encoder;
+
+/**
+ * Per operation CPU time and allocation accounting - samples the thread CPU time and the
+ * bytes allocated by the thread (ThreadMXBean) before and after each operation
+ *
+ * Operations:
+ *   decode          - WSQ decode of one finger
+ *   compose         - composition of one slap
+ *   encode          - WSQ encode of one image (slap or re-encoded finger)
+ *   slap            - compose and encode of one slap
+ *   encode.<stage>  - one stage of the WSQ encoder (see Encoder.StageListener)
+ *
+ * Accounting is off by default; when it is off an operation costs one volatile read.
+ * When it is on every sample reads two per-thread counters (about a microsecond), so it is
+ * cheap enough to leave on in production to check allocation reduction work. Operations on
+ * virtual threads are not sampled, as their CPU time is not available.
+ *
+ * The totals are shown by SlapGenMetrics (JMX and the SlapService /metrics page) and in the
+ * BulkApp summary.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class ResourceAccounting implements Encoder.StageListener {
+
+	private static final ResourceAccounting INSTANCE = new ResourceAccounting();
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean ALLOCATION = THREADS instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) THREADS : null;
+
+	private static volatile boolean enabled;
+
+	private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+	private final ThreadLocal<Stage> stages = ThreadLocal.withInitial(Stage::new);
+
+	private ResourceAccounting() {
+	}
+
+	   /**
+	   * setEnabled - Switches the accounting of SlapGen and of the encoder stages on or off
+	   *
+	   * @param boolean on - true to sample every operation
+	   * @return boolean true if the JVM supports thread CPU time (allocation is counted as 0 when not supported)
+	   *
+	   **/
+	public static synchronized boolean setEnabled(boolean on) {
+		if(on) {
+			if(!THREADS.isThreadCpuTimeSupported()) {
+				return false;
+			}
+			THREADS.setThreadCpuTimeEnabled(true);
+			if(ALLOCATION != null && ALLOCATION.isThreadAllocatedMemorySupported()) {
+				ALLOCATION.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+		Encoder.setStageListener(on ? INSTANCE : null);
+		enabled = on;
+		return true;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static ResourceAccounting get() {
+		return INSTANCE;
+	}
+
+	   /**
+	   * Span - CPU time and allocated bytes of the thread at the start of an operation
+	   *
+	   **/
+	static final class Span {
+		final long cpuNanos;
+		final long allocatedBytes;
+
+		Span(long cpuNanos, long allocatedBytes) {
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	   /**
+	   * start - Samples the current thread at the start of an operation
+	   *
+	   * @return Span start sample - null if the accounting is off or the thread can not be sampled
+	   *
+	   **/
+	static Span start() {
+		if(!enabled) {
+			return null;
+		}
+		long cpu = THREADS.getCurrentThreadCpuTime();
+		return cpu < 0 ? null : new Span(cpu, allocatedBytes());
+	}
+
+	   /**
+	   * end - Samples the current thread at the end of an operation and adds the difference to the operation
+	   *
+	   * @param Span span - sample from start(), null is ignored
+	   * @param String operation - operation name
+	   *
+	   **/
+	static void end(Span span, String operation) {
+		if(span != null) {
+			INSTANCE.add(operation, THREADS.getCurrentThreadCpuTime() - span.cpuNanos, allocatedBytes() - span.allocatedBytes);
+		}
+	}
+
+	   /**
+	   * since - Cost of the current thread since the start of the first part of an operation that ends on another thread
+	   *
+	   * @param Span span - sample from start(), null is ignored
+	   * @return Span CPU time and allocated bytes of the part - null if span is null
+	   *
+	   **/
+	static Span since(Span span) {
+		return span == null ? null
+				: new Span(THREADS.getCurrentThreadCpuTime() - span.cpuNanos, allocatedBytes() - span.allocatedBytes);
+	}
+
+	   /**
+	   * end - Samples the current thread at the end of an operation and adds the difference and the cost of its first part
+	   *
+	   * @param Span span - sample from start(), null is ignored
+	   * @param Span earlier - cost of the first part from since(), the operation is ignored if it is null
+	   * @param String operation - operation name
+	   *
+	   **/
+	static void end(Span span, Span earlier, String operation) {
+		if(span != null && earlier != null) {
+			INSTANCE.add(operation, THREADS.getCurrentThreadCpuTime() - span.cpuNanos + earlier.cpuNanos,
+					allocatedBytes() - span.allocatedBytes + earlier.allocatedBytes);
+		}
+	}
+
+	private static long allocatedBytes() {
+		if(ALLOCATION == null) {
+			return 0;
+		}
+		long allocated = ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return Math.max(0, allocated);
+	}
+
+	private void add(String operation, long cpuNanos, long allocatedBytes) {
+		Meter meter = meters.computeIfAbsent(operation, name -> new Meter());
+		meter.count.increment();
+		meter.cpuNanos.add(cpuNanos);
+		meter.allocatedBytes.add(allocatedBytes);
+	}
+
+	private static final class Meter {
+		final LongAdder count = new LongAdder();
+		final LongAdder cpuNanos = new LongAdder();
+		final LongAdder allocatedBytes = new LongAdder();
+	}
+
+	private static final class Stage {
+		String name;
+		Span span;
+	}
+
+	@Override
+	public void encodeStarted(int width, int height) {
+		stages.get().name = null;	// a failed encode leaves its last stage open
+	}
+
+	@Override
+	public void stageStarted(String stage) {
+		Stage current = stages.get();
+		if(current.name != null) {
+			end(current.span, "encode." + current.name);
+		}
+		current.name = stage;
+		current.span = start();
+	}
+
+	@Override
+	public void encodeEnded() {
+		Stage current = stages.get();
+		if(current.name != null) {
+			end(current.span, "encode." + current.name);
+			current.name = null;
+			current.span = null;
+		}
+	}
+
+	   /**
+	   * Cost - Totals of one operation, mapped to CompositeData by JMX
+	   *
+	   **/
+	public static final class Cost {
+		private final long count;
+		private final long cpuNanos;
+		private final long allocatedBytes;
+
+		@ConstructorProperties({"count", "cpuNanos", "allocatedBytes"})
+		public Cost(long count, long cpuNanos, long allocatedBytes) {
+			this.count = count;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public double getCpuMillisPerOperation() {
+			return count == 0 ? 0 : cpuNanos / 1e6 / count;
+		}
+
+		public double getAllocatedMegabytesPerOperation() {
+			return count == 0 ? 0 : allocatedBytes / (1024.0 * 1024.0) / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d cpu=%.2fms/op alloc=%.2fMB/op total cpu=%.2fs alloc=%dMB",
+					count, getCpuMillisPerOperation(), getAllocatedMegabytesPerOperation(), cpuNanos / 1e9, allocatedBytes >> 20);
+		}
+	}
+
+	   /**
+	   * getCosts - Totals per operation since the start or the last reset
+	   *
+	   * @return Map<String, Cost> costs sorted by operation name
+	   *
+	   **/
+	public Map<String, Cost> getCosts() {
+		Map<String, Cost> costs = new TreeMap<>();
+		meters.forEach((operation, meter) ->
+				costs.put(operation, new Cost(meter.count.sum(), meter.cpuNanos.sum(), meter.allocatedBytes.sum())));
+		return costs;
+	}
+
+	public void reset() {
+		meters.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		getCosts().forEach((operation, cost) -> text.append(String.format("%-24s %s%n", operation, cost)));
+		return text.toString().trim();
+	}
+}
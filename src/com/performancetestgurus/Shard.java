@@ -0,0 +1,108 @@
+package com.performancetestgurus;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Deterministic share of the identities for one of several generator processes
+ *
+ * An identity belongs to shard hash(id) mod count, with hash the 64 bit FNV-1a hash of the
+ * UTF-8 identity id. Every process can work out its share on its own, on any host and JVM,
+ * and every identity is generated by exactly one shard. As each identity is generated
+ * independently, its images are the same however the work is sharded.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class Shard {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int index;
+	private final int count;
+
+	   /**
+	   * @param int index - this shard, 0 to count - 1
+	   * @param int count - number of shards
+	   **/
+	public Shard(int index, int count) {
+		if(count <= 0 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Shard must be i/N with 0 <= i < N : " + index + "/" + count);
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	   /**
+	   * parse - Parses a shard given as i/N
+	   *
+	   * @param String shard - e.g. 0/4 for the first of four shards
+	   * @return Shard parsed shard
+	   *
+	   **/
+	public static Shard parse(String shard) {
+		int slash = shard.indexOf('/');
+		if(slash < 0) {
+			throw new IllegalArgumentException("Shard must be i/N : " + shard);
+		}
+		return new Shard(Integer.parseInt(shard.substring(0, slash).trim()),
+				Integer.parseInt(shard.substring(slash + 1).trim()));
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	   /**
+	   * contains - true if the identity belongs to this shard
+	   *
+	   * @param String id - identity id
+	   *
+	   **/
+	public boolean contains(String id) {
+		return Long.remainderUnsigned(hash(id), count) == index;
+	}
+
+	   /**
+	   * contains - true if the identity number belongs to this shard, for generated identity spaces
+	   *
+	   * @param long identity - identity number
+	   *
+	   **/
+	public boolean contains(long identity) {
+		return Long.remainderUnsigned(mix(identity), count) == index;
+	}
+
+	   /**
+	   * hash - 64 bit FNV-1a hash of the UTF-8 bytes of an identity id
+	   *
+	   **/
+	public static long hash(String id) {
+		long hash = FNV_OFFSET_BASIS;
+		for(byte b : id.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long mix(long identity) {
+		long hash = FNV_OFFSET_BASIS;
+		for(int i = 0; i < Long.BYTES; i++) {
+			hash ^= (identity >>> (i * 8)) & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
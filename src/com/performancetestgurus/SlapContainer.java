@@ -0,0 +1,562 @@
+package com.performancetestgurus;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Single file output container for slaps and re-encoded fingers - replaces one small file per image
+ *
+ * Layout:
+ *   header  - magic "SLAPCON1", version
+ *   records - the WSQ images back to back, as they would be written to .wsq files
+ *   index   - per image: identity id, finger position, offset, length, CRC32
+ *   trailer - index offset, image count, index CRC32, magic "SLAPIDX1"
+ *
+ * The writer spills the index entries to a temporary file next to the container (deleted on
+ * close), so its heap does not grow with the number of images, and copies them behind the
+ * records when it is closed. Readers map the records and look images up
+ * by number or by identity and position. As the records are plain WSQ, a container without a
+ * trailer (e.g. after a crash) can still be read with WsqArchive.
+ *
+ * Command line tool:
+ *   SlapContainer list container
+ *   SlapContainer verify container
+ *   SlapContainer export container directory [wsq|txt] - writes directory/id_NN.wsq (or .txt)
+ *   SlapContainer export container --manifest manifest - writes to the output paths of the manifest
+ *     (export exits with 1 if any image could not be read or written)
+ *   SlapContainer merge target container... - merges per-shard containers (see Shard)
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class SlapContainer implements Closeable {
+
+	private static final long MAGIC = 0x534c4150434f4e31L;	// "SLAPCON1"
+	private static final long TRAILER_MAGIC = 0x534c415049445831L;	// "SLAPIDX1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int TRAILER_SIZE = 24;
+	private static final int WINDOW_SHIFT = 30;
+	private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] windows;
+	private final String[] ids;
+	private final byte[] positions;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] crcs;
+	private final Map<String, Integer> lookup;
+
+	private SlapContainer(FileChannel channel, MappedByteBuffer[] windows, String[] ids, byte[] positions,
+			long[] offsets, int[] lengths, int[] crcs) {
+		this.channel = channel;
+		this.windows = windows;
+		this.ids = ids;
+		this.positions = positions;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.crcs = crcs;
+		this.lookup = new HashMap<>(ids.length * 2);
+		for(int i = 0; i < ids.length; i++) {
+			lookup.put(key(ids[i], positions[i]), i);
+		}
+	}
+
+	   /**
+	   * create - Creates (or replaces) a container
+	   *
+	   * @param Path container - container file
+	   * @return Writer writer, the index is written by close
+	   *
+	   **/
+	public static Writer create(Path container) throws IOException {
+		return new Writer(container);
+	}
+
+	   /**
+	   * open - Maps a closed container and reads its index
+	   *
+	   * @param Path container - container file
+	   * @return SlapContainer reader
+	   *
+	   **/
+	public static SlapContainer open(Path container) throws IOException {
+		FileChannel channel = FileChannel.open(container, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size < HEADER_SIZE + TRAILER_SIZE) {
+				throw new IOException("Not a slap container : " + container);
+			}
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if(header.getLong() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a slap container : " + container);
+			}
+			ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+			long indexOffset = trailer.getLong();
+			int count = trailer.getInt();
+			int indexCrc = trailer.getInt();
+			if(trailer.getLong() != TRAILER_MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE) {
+				throw new IOException("Slap container has no index (writer not closed?) : " + container);
+			}
+			ByteBuffer index = read(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+			CRC32 crc = new CRC32();
+			crc.update(index.duplicate());
+			if((int) crc.getValue() != indexCrc) {
+				throw new IOException("Slap container index is corrupt : " + container);
+			}
+			String[] ids = new String[count];
+			byte[] positions = new byte[count];
+			long[] offsets = new long[count];
+			int[] lengths = new int[count];
+			int[] crcs = new int[count];
+			for(int i = 0; i < count; i++) {
+				byte[] id = new byte[index.getShort() & 0xFFFF];
+				index.get(id);
+				ids[i] = new String(id, StandardCharsets.UTF_8);
+				positions[i] = index.get();
+				offsets[i] = index.getLong();
+				lengths[i] = index.getInt();
+				crcs[i] = index.getInt();
+			}
+			MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((indexOffset + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+			for(int i = 0; i < windows.length; i++) {
+				long start = (long) i << WINDOW_SHIFT;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(WINDOW_SIZE + MAX_RECORD_SIZE, indexOffset - start));
+			}
+			return new SlapContainer(channel, windows, ids, positions, offsets, lengths, crcs);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of slap container");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String key(String id, int position) {
+		return id + '\u0000' + position;
+	}
+
+	   /**
+	   * size - Number of images in the container
+	   *
+	   **/
+	public int size() {
+		return ids.length;
+	}
+
+	public String getId(int image) {
+		return ids[image];
+	}
+
+	public int getPosition(int image) {
+		return positions[image];
+	}
+
+	public long offset(int image) {
+		return offsets[image];
+	}
+
+	public int length(int image) {
+		return lengths[image];
+	}
+
+	   /**
+	   * find - Looks up an image by identity and position
+	   *
+	   * @param String id - identity id
+	   * @param int position - 13, 14, 15 for slaps or 1 to 10 for re-encoded fingers
+	   * @return int image number or -1 if the container does not hold the image
+	   *
+	   **/
+	public int find(String id, int position) {
+		Integer image = lookup.get(key(id, position));
+		return image == null ? -1 : image;
+	}
+
+	   /**
+	   * record - Returns an image without copying or checking it
+	   *
+	   * @param int image - image number
+	   * @return ByteBuffer read-only slice of the mapped container holding the WSQ image
+	   *
+	   **/
+	public ByteBuffer record(int image) {
+		long offset = offsets[image];
+		ByteBuffer window = windows[(int) (offset >>> WINDOW_SHIFT)].duplicate();
+		int position = (int) (offset & (WINDOW_SIZE - 1));
+		window.limit(position + lengths[image]).position(position);
+		return window.slice().asReadOnlyBuffer();
+	}
+
+	   /**
+	   * read - Copies an image out of the container and checks its CRC
+	   *
+	   * @param int image - image number
+	   * @return byte[] image in wsq format as byte array
+	   *
+	   **/
+	public byte[] read(int image) throws IOException {
+		byte[] wsq = new byte[lengths[image]];
+		record(image).get(wsq);
+		CRC32 crc = new CRC32();
+		crc.update(wsq);
+		if((int) crc.getValue() != crcs[image]) {
+			throw new IOException("CRC mismatch for " + ids[image] + " position " + positions[image]);
+		}
+		return wsq;
+	}
+
+	   /**
+	   * verify - Checks the CRC of every image
+	   *
+	   * @return int number of corrupt images
+	   *
+	   **/
+	public int verify() {
+		int corrupt = 0;
+		CRC32 crc = new CRC32();
+		for(int i = 0; i < size(); i++) {
+			crc.reset();
+			crc.update(record(i));
+			if((int) crc.getValue() != crcs[i]) {
+				System.out.println("**** Corrupt : " + ids[i] + " position " + positions[i]);
+				corrupt++;
+			}
+		}
+		return corrupt;
+	}
+
+	   /**
+	   * export - Writes every image to its own file in the layout of the UI
+	   *
+	   * Images that cannot be read (CRC mismatch) or written are reported and counted as failed.
+	   * 
+	   * @param Path directory - target directory, files are named id_NN.ext
+	   * @param String extension - wsq or txt (base64)
+	   * @return ExportReport number of files written and failed
+	   *
+	   **/
+	public ExportReport export(Path directory, String extension) throws IOException {
+		Files.createDirectories(directory);
+		ExportReport report = new ExportReport();
+		for(int i = 0; i < size(); i++) {
+			String fileName = String.format("%s_%02d.%s", ids[i], positions[i], extension);
+			export(i, directory.resolve(fileName).toString(), report);
+		}
+		return report;
+	}
+
+	   /**
+	   * export - Writes every image to the output path of its identity in a manifest
+	   *
+	   * Images that cannot be read (CRC mismatch) or written are reported and counted as failed.
+	   * 
+	   * @param Path manifest - manifest the container was generated from
+	   * @return ExportReport number of files written and failed
+	   *
+	   **/
+	public ExportReport export(Path manifest) throws IOException {
+		ExportReport report = new ExportReport();
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			for(Manifest.Record record : (Iterable<Manifest.Record>) records::iterator) {
+				for(int position = 1; position <= SlapResult.THUMB_SLAP; position++) {
+					if(position > TenPrint.FINGER_COUNT && position < SlapResult.RIGHT_SLAP) {
+						continue;
+					}
+					String fileName = record.getOutputPath(position);
+					int image = find(record.getId(), position);
+					if(!fileName.isEmpty() && image >= 0) {
+						export(image, fileName, report);
+					}
+				}
+			}
+		}
+		return report;
+	}
+
+	private void export(int image, String fileName, ExportReport report) {
+		try {
+			App.writeImage(fileName, read(image));
+			report.written++;
+		} catch (IOException e) {
+			System.out.println("**** Unable to export " + ids[image] + " position " + positions[image] + " to " + fileName + " : " + e);
+			report.failed++;
+		}
+	}
+
+	   /**
+	   * ExportReport - File counts of an export
+	   *
+	   **/
+	public static final class ExportReport {
+		public int written;
+		public int failed;
+
+		@Override
+		public String toString() {
+			return written + " files written, " + failed + " failed";
+		}
+	}
+
+	   /**
+	   * merge - Concatenates containers, e.g. the outputs of several shards, into a new container
+	   *
+	   * Every image is CRC-checked before it is copied. Fails if an image is corrupt or if two
+	   * containers hold the same identity and position.
+	   *
+	   * @param Path target - merged container
+	   * @param List<Path> containers - containers to merge, in order
+	   * @return int number of images in the merged container
+	   *
+	   **/
+	public static int merge(Path target, List<Path> containers) throws IOException {
+		Map<String, Path> seen = new HashMap<>();
+		int merged = 0;
+		try (Writer writer = create(target)) {
+			for(Path path : containers) {
+				try (SlapContainer container = open(path)) {
+					for(int i = 0; i < container.size(); i++) {
+						Path duplicate = seen.putIfAbsent(key(container.getId(i), container.getPosition(i)), path);
+						if(duplicate != null) {
+							throw new IOException(container.getId(i) + " position " + container.getPosition(i) 
+									+ " is in " + duplicate + " and " + path);
+						}
+						writer.append(container.getId(i), container.getPosition(i), container.read(i));
+						merged++;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(target);
+			throw e;
+		}
+		return merged;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	   /**
+	   * Writer - Appends images to a container, safe for use by several threads
+	   *
+	   **/
+	public static final class Writer implements Closeable {
+		private final FileChannel channel;
+		private final DataOutputStream out;
+		private final FileChannel indexChannel;
+		private final DataOutputStream index;
+		private final CRC32 crc = new CRC32();
+		private final CRC32 indexCrc = new CRC32();
+		private final ByteBuffer entry = ByteBuffer.allocate(2 + 0xFFFF + 1 + 8 + 4 + 4);
+		private int count;
+		private long offset;
+		private boolean closed;
+
+		private Writer(Path container) throws IOException {
+			Path directory = container.toAbsolutePath().getParent();
+			Path indexFile = Files.createTempFile(directory, container.getFileName() + ".", ".index");
+			indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ, 
+					StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel), WRITE_BUFFER_SIZE));
+			try {
+				channel = FileChannel.open(container, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException | RuntimeException e) {
+				index.close();
+				throw e;
+			}
+			OutputStream stream = Channels.newOutputStream(channel);
+			out = new DataOutputStream(new BufferedOutputStream(stream, WRITE_BUFFER_SIZE));
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			offset = HEADER_SIZE;
+		}
+
+		   /**
+		   * append - Appends one image
+		   *
+		   * @param String id - identity id
+		   * @param int position - 13, 14, 15 for slaps or 1 to 10 for re-encoded fingers
+		   * @param byte[] wsq - image in wsq format as byte array
+		   *
+		   **/
+		public synchronized void append(String id, int position, byte[] wsq) throws IOException {
+			if(closed) {
+				throw new IOException("Slap container is closed");
+			}
+			if(wsq.length > MAX_RECORD_SIZE) {
+				throw new IllegalArgumentException("Image too large for a slap container : " + wsq.length + " bytes");
+			}
+			byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+			if(idBytes.length > 0xFFFF) {
+				throw new IllegalArgumentException("Identity id too long : " + id);
+			}
+			crc.reset();
+			crc.update(wsq);
+			out.write(wsq);
+			entry.clear();
+			entry.putShort((short) idBytes.length).put(idBytes).put((byte) position)
+					.putLong(offset).putInt(wsq.length).putInt((int) crc.getValue());
+			indexCrc.update(entry.array(), 0, entry.position());
+			index.write(entry.array(), 0, entry.position());
+			count++;
+			offset += wsq.length;
+		}
+
+		   /**
+		   * append - Appends all images of a result
+		   *
+		   * @param SlapResult result - generated slaps and re-encoded fingers, missing images are skipped
+		   *
+		   **/
+		public void append(SlapResult result) throws IOException {
+			for(int position = 1; position <= SlapResult.THUMB_SLAP; position++) {
+				if(position > TenPrint.FINGER_COUNT && position < SlapResult.RIGHT_SLAP) {
+					continue;
+				}
+				byte[] image = result.getFinger(position);
+				if(image != null) {
+					append(result.getId(), position, image);
+				}
+			}
+		}
+
+		   /**
+		   * sync - Flushes the images appended so far and syncs them to disk
+		   *
+		   **/
+		public synchronized void sync() throws IOException {
+			if(closed) {
+				throw new IOException("Slap container is closed");
+			}
+			out.flush();
+			channel.force(false);
+		}
+
+		   /**
+		   * close - Writes the index and trailer and syncs the container to disk
+		   *
+		   **/
+		@Override
+		public synchronized void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				long indexOffset = offset;
+				out.flush();
+				index.flush();
+				long indexSize = indexChannel.size();
+				for(long copied = 0; copied < indexSize; ) {
+					copied += indexChannel.transferTo(copied, indexSize - copied, channel);
+				}
+				out.writeLong(indexOffset);
+				out.writeInt(count);
+				out.writeInt((int) indexCrc.getValue());
+				out.writeLong(TRAILER_MAGIC);
+				out.flush();
+				channel.force(true);
+			} finally {
+				try {
+					out.close();
+				} finally {
+					index.close();
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			usage();
+		}
+		if(args[0].equals("merge")) {
+			List<Path> containers = new ArrayList<>();
+			for(int i = 2; i < args.length; i++) {
+				containers.add(Paths.get(args[i]));
+			}
+			System.out.println(merge(Paths.get(args[1]), containers) + " images merged into " + args[1]);
+			return;
+		}
+		try (SlapContainer container = open(Paths.get(args[1]))) {
+			switch(args[0]) {
+			case "list":
+				for(int i = 0; i < container.size(); i++) {
+					System.out.println(String.format("%s\t%02d\t%d\t%d", container.getId(i), container.getPosition(i),
+							container.offset(i), container.length(i)));
+				}
+				break;
+			case "verify":
+				int corrupt = container.verify();
+				System.out.println(container.size() + " images, " + corrupt + " corrupt");
+				System.exit(corrupt == 0 ? 0 : 1);
+				break;
+			case "export":
+				ExportReport report = null;
+				if(args.length == 4 && args[2].equals("--manifest")) {
+					report = container.export(Paths.get(args[3]));
+				} else if(args.length == 3 || args.length == 4) {
+					String extension = args.length == 4 ? args[3].toLowerCase() : "wsq";
+					if(!extension.equals("wsq") && !extension.equals("txt")) {
+						usage();
+					}
+					report = container.export(Paths.get(args[2]), extension);
+				} else {
+					usage();
+				}
+				System.out.println(report);
+				System.exit(report.failed == 0 ? 0 : 1);
+				break;
+			default:
+				usage();
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SlapContainer list <container>");
+		System.out.println("        SlapContainer verify <container>");
+		System.out.println("        SlapContainer export <container> <directory> [wsq|txt]");
+		System.out.println("        SlapContainer export <container> --manifest <manifest>");
+		System.out.println("        SlapContainer merge <target> <container>...");
+		System.exit(2);
+	}
+}
@@ -6,6 +6,20 @@ import java.awt.image.BufferedImage;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.jnbis.WSQDecoder;
 
@@ -28,6 +42,9 @@ import org.jnbis.WSQDecoder;
 
 public class SlapGen {
 
+	private static volatile DecodedFingerStore decodedFingerStore;
+	private static volatile MemoryBudget memoryBudget;
+
 	   /**
 	   * rightSlap - Generates the right slap (Finger 13) based on a set of WSQ byte arrays 
 	   * 
@@ -48,18 +65,8 @@ public class SlapGen {
 			byte[] finger5
 			)  {
 
-		BufferedImage target = new BufferedImage(1600, 1500, BufferedImage.TYPE_BYTE_GRAY);
-		Graphics2D g = (Graphics2D) target.getGraphics();	
-		g.setBackground(Color.WHITE);
-		g.clearRect(0, 0, target.getWidth(), target.getHeight());
-
-		placeFingerOnImage(g, finger2, 64, 608);
-		placeFingerOnImage(g, finger3, 448, 352);
-		placeFingerOnImage(g, finger4, 864, 416);
-		placeFingerOnImage(g, finger5, 1248, 864);
-		
-		//Util.showImage(target);  //I used this to view the generated slaps during development
-		return Util.convert(target);
+		BufferedImage crop2 = fingerCrop(finger2), crop3 = fingerCrop(finger3), crop4 = fingerCrop(finger4), crop5 = fingerCrop(finger5);
+		return convertSlap(() -> composeRightSlap(crop2, crop3, crop4, crop5));
 	}
 	
 	   /**
@@ -82,18 +89,8 @@ public class SlapGen {
 			byte[] finger10
 			)  {
 
-		BufferedImage target = new BufferedImage(1600, 1500, BufferedImage.TYPE_BYTE_GRAY);
-		Graphics2D g = (Graphics2D) target.getGraphics();	
-		g.setBackground(Color.WHITE);
-		g.clearRect(0, 0, target.getWidth(), target.getHeight());
-		
-		placeFingerOnImage(g, finger7,1248, 608);
-		placeFingerOnImage(g, finger8,832, 352);
-		placeFingerOnImage(g, finger9,416, 416);
-		placeFingerOnImage(g, finger10,64, 864);
-
-		//Util.showImage(target);  //I used this to view the generated slaps during development
-		return Util.convert(target);
+		BufferedImage crop7 = fingerCrop(finger7), crop8 = fingerCrop(finger8), crop9 = fingerCrop(finger9), crop10 = fingerCrop(finger10);
+		return convertSlap(() -> composeLeftSlap(crop7, crop8, crop9, crop10));
 	}	
 
 	
@@ -113,17 +110,19 @@ public class SlapGen {
 			byte[] finger6
 			)  {
 
-		BufferedImage target = 	new BufferedImage(1600, 1500, BufferedImage.TYPE_BYTE_GRAY);
-		Graphics2D g = (Graphics2D) target.getGraphics();	
-		g.setBackground(Color.WHITE);
-		g.clearRect(0, 0, target.getWidth(), target.getHeight());
-
-		placeFingerOnImage(g, finger6, 384, 384);
-		placeFingerOnImage(g, finger1, 928, 384);
+		BufferedImage crop1 = fingerCrop(finger1), crop6 = fingerCrop(finger6);
+		return convertSlap(() -> composeThumbSlap(crop1, crop6));
+	}	
+	
+	private static byte[] convertSlap(Supplier<BufferedImage> composer) {
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		BufferedImage target = composer.get();
 		
 		//Util.showImage(target);  //I used this to view the generated slaps during development
-		return Util.convert(target);
-	}	
+		byte[] wsq = Util.convert(target);
+		ResourceAccounting.end(span, "slap");
+		return wsq;
+	}
 
 	   /**
 	   * reEncodeFinger - re-encodes a figner - this is to add WSQ compression artifacts to the fingerprint
@@ -137,7 +136,7 @@ public class SlapGen {
 	public static byte[] reEncodeFinger(byte[] finger) {
 		BufferedImage image = null;
 		try {
-			image = Util.convert(WSQDecoder.decode(new ByteArrayInputStream(finger)));
+			image = decode(new ByteArrayInputStream(finger), finger.length);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -145,17 +144,717 @@ public class SlapGen {
 		
 	}	
 	
-	private static void placeFingerOnImage(Graphics2D g, byte [] finger, int x, int y) {
-		if(finger != null) {
+	   /**
+	   * setDecodedFingerStore - Uses a persistent store of decoded finger crops when placing fingers on slaps
+	   * 
+	   * Used by every slap builder, generate and stream. Fingers found in the store are not decoded 
+	   * again unless they are also re-encoded, new fingers are appended to it.
+	   * 
+	   * @param DecodedFingerStore store - store to use - use null to always decode
+	   * 
+	   **/
+	public static void setDecodedFingerStore(DecodedFingerStore store) {
+		decodedFingerStore = store;
+	}
+	
+	   /**
+	   * setMemoryBudget - Limits the memory used by concurrent WSQ encodes
+	   * 
+	   * Encodes that do not fit into the budget wait and are finally rejected with a 
+	   * RejectedExecutionException - see MemoryBudget.
+	   * 
+	   * @param MemoryBudget budget - budget to use - use null for no limit
+	   * 
+	   **/
+	public static void setMemoryBudget(MemoryBudget budget) {
+		memoryBudget = budget;
+	}
+	
+	public static MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public static DecodedFingerStore getDecodedFingerStore() {
+		return decodedFingerStore;
+	}
+	
+	   /**
+	   * generate - Generates the re-encoded fingers and all three slaps of a tenprint
+	   * 
+	   * Runs on the calling thread - see generate(TenPrint, SlapOptions, Executor)
+	   * 
+	   * @param TenPrint tenPrint - fingers 1 to 10 in wsq format
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq images
+	   * @return SlapResult re-encoded fingers 1 to 10 and slaps 13, 14 and 15
+	   * 
+	   **/
+	public static SlapResult generate(TenPrint tenPrint, SlapOptions options) throws IOException {
+		return generate(tenPrint, options, Runnable::run);
+	}
+
+	   /**
+	   * generate - Generates the re-encoded fingers and all three slaps of a tenprint
+	   * 
+	   * Each finger is decoded once and used for both its re-encoded image and its slap.
+	   * The decodes, the ten finger encodes and the three slap composites/encodes are 
+	   * independent tasks run on the executor.
+	   * 
+	   * @param TenPrint tenPrint - fingers 1 to 10 in wsq format
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq images
+	   * @param Executor executor - runs the decode, compose and encode tasks
+	   * @return SlapResult re-encoded fingers 1 to 10 (unless disabled in the options) and slaps 13, 14 and 15 
+	   * 				- a slap without any fingers is null
+	   * 
+	   **/
+	public static SlapResult generate(TenPrint tenPrint, SlapOptions options, Executor executor) throws IOException {
+		List<CompletableFuture<BufferedImage>> crops = new ArrayList<>(TenPrint.FINGER_COUNT);
+		List<CompletableFuture<byte[]>> fingers = new ArrayList<>(TenPrint.FINGER_COUNT);
+		for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+			byte[] finger = tenPrint.getFinger(position);
+			if(options.isReEncodeFingers()) {
+				CompletableFuture<BufferedImage> image = decodeAsync(finger, executor);
+				crops.add(image.thenApply(decoded -> cropAndStore(finger, decoded)));
+				fingers.add(image.thenApplyAsync(decoded -> encode(decoded, options), executor));
+			} else {
+				crops.add(cropAsync(finger, executor));
+				fingers.add(CompletableFuture.completedFuture(null));
+			}
+		}
+		
+		Augmentation.Variant variant = options.variant(tenPrint.getId());
+		CompletableFuture<byte[]> rightSlap = rightSlapAsync(
+				crops.get(1), crops.get(2), crops.get(3), crops.get(4), options, variant, true, executor);
+		CompletableFuture<byte[]> leftSlap = leftSlapAsync(
+				crops.get(6), crops.get(7), crops.get(8), crops.get(9), options, variant, true, executor);
+		CompletableFuture<byte[]> thumbSlap = thumbSlapAsync(crops.get(0), crops.get(5), options, variant, true, executor);
+
+		byte[][] reEncoded = new byte[TenPrint.FINGER_COUNT][];
+		for(int i = 0; i < reEncoded.length; i++) {
+			reEncoded[i] = join(fingers.get(i));
+		}
+		return new SlapResult(tenPrint.getId(), reEncoded, join(rightSlap), join(leftSlap), join(thumbSlap));
+	}
+	
+	   /**
+	   * rightSlapAsync - Generates the right slap (Finger 13) without blocking the calling thread
+	   * 
+	   * The four fingers are decoded concurrently on the executor, the slap is composed and 
+	   * encoded once all four are decoded. A finger that cannot be decoded completes the 
+	   * future exceptionally instead of being left off the slap.
+	   * 
+	   * @param byte[] finger2 - finger 2 (Right Index) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger3 - finger 3 (Right Middle) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger4 - finger 4 (Right Ring) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger5 - finger 5 (Right Little) wsq format as byte array - use null to remove finger from slap 
+	   * @param Executor executor - runs the decode, compose and encode tasks
+	   * @return CompletableFuture<byte[]> finger 13 (right slap) in wsq format as byte array 
+	   * 				- a blank slap if all four fingers are null, like rightSlap
+	   * 
+	   **/
+	public static CompletableFuture<byte[]> rightSlapAsync(
+			byte[] finger2,
+			byte[] finger3,
+			byte[] finger4, 
+			byte[] finger5,
+			Executor executor
+			)  {
+		return rightSlapAsync(
+				cropAsync(finger2, executor), cropAsync(finger3, executor), 
+				cropAsync(finger4, executor), cropAsync(finger5, executor), 
+				SlapOptions.DEFAULT, null, false, executor);
+	}
+	
+	   /**
+	   * leftSlapAsync - Generates the left slap (Finger 14) without blocking the calling thread
+	   * 
+	   * The four fingers are decoded concurrently on the executor, the slap is composed and 
+	   * encoded once all four are decoded. A finger that cannot be decoded completes the 
+	   * future exceptionally instead of being left off the slap.
+	   * 
+	   * @param byte[] finger7 - finger 7 (Left Index) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger8 - finger 8 (Left Middle) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger9 - finger 9 (Left Ring) in wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger10 - finger 10 (Left Little) in wsq format as byte array - use null to remove finger from slap 
+	   * @param Executor executor - runs the decode, compose and encode tasks
+	   * @return CompletableFuture<byte[]> finger 14 (left slap) in wsq format as byte array 
+	   * 				- a blank slap if all four fingers are null, like leftSlap
+	   * 
+	   **/
+	public static CompletableFuture<byte[]> leftSlapAsync(
+			byte[] finger7,
+			byte[] finger8,
+			byte[] finger9, 
+			byte[] finger10,
+			Executor executor
+			)  {
+		return leftSlapAsync(
+				cropAsync(finger7, executor), cropAsync(finger8, executor), 
+				cropAsync(finger9, executor), cropAsync(finger10, executor), 
+				SlapOptions.DEFAULT, null, false, executor);
+	}
+	
+	   /**
+	   * thumbSlapAsync - Generates the thumb slap (Finger 15) without blocking the calling thread
+	   * 
+	   * Both thumbs are decoded concurrently on the executor. A finger that cannot be decoded 
+	   * completes the future exceptionally instead of being left off the slap.
+	   * 
+	   * @param byte[] finger1 - finger 1 (Right Thumb) as wsq format as byte array - use null to remove finger from slap 
+	   * @param byte[] finger6 - finger 6 (Left Thumb) as wsq format as byte array - use null to remove finger from slap 
+	   * @param Executor executor - runs the decode, compose and encode tasks
+	   * @return CompletableFuture<byte[]> thumb slap (finger 15) in wsq format as byte array 
+	   * 				- a blank slap if both thumbs are null, like thumbSlap
+	   * 
+	   **/
+	public static CompletableFuture<byte[]> thumbSlapAsync(
+			byte[] finger1,
+			byte[] finger6,
+			Executor executor
+			)  {
+		return thumbSlapAsync(cropAsync(finger1, executor), cropAsync(finger6, executor), SlapOptions.DEFAULT, null, false, executor);
+	}
+	
+	   /**
+	   * reEncodeFingerAsync - re-encodes a finger without blocking the calling thread
+	   * 
+	   * A null finger or a finger that cannot be decoded completes the future exceptionally.
+	   * 
+	   * @param byte[] finger - Finger to be encoded 
+	   * @param Executor executor - runs the decode and encode tasks
+	   * @return CompletableFuture<byte[]> encoded wsq as a byte array
+	   * 
+	   **/
+	public static CompletableFuture<byte[]> reEncodeFingerAsync(byte[] finger, Executor executor) {
+		if(finger == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Finger cannot be null"));
+		}
+		return decodeAsync(finger, executor).thenApplyAsync(image -> encode(image, SlapOptions.DEFAULT), executor);
+	}
+	
+	private static CompletableFuture<byte[]> rightSlapAsync(
+			CompletableFuture<BufferedImage> finger2,
+			CompletableFuture<BufferedImage> finger3,
+			CompletableFuture<BufferedImage> finger4,
+			CompletableFuture<BufferedImage> finger5,
+			SlapOptions options,
+			Augmentation.Variant variant,
+			boolean nullIfEmpty,
+			Executor executor) {
+		return CompletableFuture.allOf(finger2, finger3, finger4, finger5)
+				.thenApplyAsync(v -> nullIfEmpty && noFingers(finger2, finger3, finger4, finger5) ? null : encodeSlap(() -> composeRightSlap(
+						finger2.join(), finger3.join(), finger4.join(), finger5.join(), variant), options), executor);
+	}
+	
+	private static CompletableFuture<byte[]> leftSlapAsync(
+			CompletableFuture<BufferedImage> finger7,
+			CompletableFuture<BufferedImage> finger8,
+			CompletableFuture<BufferedImage> finger9,
+			CompletableFuture<BufferedImage> finger10,
+			SlapOptions options,
+			Augmentation.Variant variant,
+			boolean nullIfEmpty,
+			Executor executor) {
+		return CompletableFuture.allOf(finger7, finger8, finger9, finger10)
+				.thenApplyAsync(v -> nullIfEmpty && noFingers(finger7, finger8, finger9, finger10) ? null : encodeSlap(() -> composeLeftSlap(
+						finger7.join(), finger8.join(), finger9.join(), finger10.join(), variant), options), executor);
+	}
+	
+	private static CompletableFuture<byte[]> thumbSlapAsync(
+			CompletableFuture<BufferedImage> finger1,
+			CompletableFuture<BufferedImage> finger6,
+			SlapOptions options,
+			Augmentation.Variant variant,
+			boolean nullIfEmpty,
+			Executor executor) {
+		return CompletableFuture.allOf(finger1, finger6)
+				.thenApplyAsync(v -> nullIfEmpty && noFingers(finger1, finger6) ? null : encodeSlap(() -> composeThumbSlap(
+						finger1.join(), finger6.join(), variant), options), executor);
+	}
+	
+	private static byte[] encodeSlap(Supplier<BufferedImage> composer, SlapOptions options) {
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		BufferedImage slap = composer.get();
+		if(slap == null) {
+			return null;
+		}
+		byte[] wsq = encode(slap, options);
+		ResourceAccounting.end(span, "slap");
+		return wsq;
+	}
+	
+	   /**
+	   * encodeSlap - Encodes a slap composed by composeCrops(BufferedImage[], Augmentation.Variant, ResourceAccounting.Span[])
+	   * 
+	   * The compose cost is added to the encode, so the slap is accounted as one compose and encode
+	   * even when the two run on different threads.
+	   * 
+	   * @param BufferedImage slap - composed slap, null for a slap without any fingers
+	   * @param ResourceAccounting.Span composeCost - cost of the compose of the slap, null if not sampled
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq image
+	   * @return byte[] slap in wsq format as byte array, null for a slap without any fingers
+	   * 
+	   **/
+	static byte[] encodeSlap(BufferedImage slap, ResourceAccounting.Span composeCost, SlapOptions options) {
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		byte[] wsq = encode(slap, options);
+		if(slap != null) {
+			ResourceAccounting.end(span, composeCost, "slap");
+		}
+		return wsq;
+	}
+	
+	@SafeVarargs
+	private static boolean noFingers(CompletableFuture<BufferedImage>... fingers) {
+		for(CompletableFuture<BufferedImage> finger : fingers) {
+			if(finger.join() != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static CompletableFuture<BufferedImage> decodeAsync(byte[] finger, Executor executor) {
+		if(finger == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.supplyAsync(() -> decodeFinger(finger), executor);
+	}
+	
+	private static CompletableFuture<BufferedImage> cropAsync(byte[] finger, Executor executor) {
+		if(finger == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.supplyAsync(() -> decodeCrop(finger), executor);
+	}
+	
+	   /**
+	   * stream - Generates slaps lazily for a stream of tenprints
+	   * 
+	   * At most one tenprint per available processor is decoded at a time - see stream(Stream, SlapOptions, int)
+	   * 
+	   * @param Stream<TenPrint> tenPrints - source of tenprints
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq images
+	   * @return Stream<SlapResult> one result per tenprint, in the order of the source
+	   * 
+	   **/
+	public static Stream<SlapResult> stream(Stream<TenPrint> tenPrints, SlapOptions options) {
+		return stream(tenPrints, options, Runtime.getRuntime().availableProcessors());
+	}
+
+	   /**
+	   * stream - Generates slaps lazily for a stream of tenprints
+	   * 
+	   * Each tenprint is processed as in generate(TenPrint, SlapOptions) when the result stream 
+	   * pulls it. The result stream is parallel if the source is, and splits the way the source does.
+	   * Failures are thrown as UncheckedIOException from the terminal operation.
+	   * 
+	   * @param Stream<TenPrint> tenPrints - source of tenprints
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq images
+	   * @param int maxInFlight - maximum number of tenprints decoded, composed and encoded at the same time
+	   * @return Stream<SlapResult> one result per tenprint, in the order of the source
+	   * 
+	   **/
+	public static Stream<SlapResult> stream(Stream<TenPrint> tenPrints, SlapOptions options, int maxInFlight) {
+		if(maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be greater than 0");
+		}
+		SlapSpliterator spliterator = new SlapSpliterator(tenPrints.spliterator(), options, new Semaphore(maxInFlight));
+		return StreamSupport.stream(spliterator, tenPrints.isParallel()).onClose(tenPrints::close);
+	}
+	
+	   /**
+	   * composeSlaps - Composes slaps 13, 14 and 15 from decoded fingers
+	   * 
+	   * @param BufferedImage[] fingers - decoded fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @return BufferedImage[] right, left and thumb slap - null for a slap without any fingers
+	   * 
+	   **/
+	static BufferedImage[] composeSlaps(BufferedImage[] fingers) {
+		return composeSlaps(fingers, null);
+	}
+	
+	   /**
+	   * composeSlaps - Composes augmented slaps 13, 14 and 15 from decoded fingers
+	   * 
+	   * @param BufferedImage[] fingers - decoded fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @param Augmentation.Variant variant - transforms applied to each finger, null for none
+	   * @return BufferedImage[] right, left and thumb slap - null for a slap without any fingers
+	   * 
+	   **/
+	static BufferedImage[] composeSlaps(BufferedImage[] fingers, Augmentation.Variant variant) {
+		return composeCrops(cropFingers(fingers), variant);
+	}
+	
+	   /**
+	   * encodeSlaps - Composes and encodes augmented slaps 13, 14 and 15 from decoded fingers, one slap at a time
+	   * 
+	   * @param BufferedImage[] fingers - decoded fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @param Augmentation.Variant variant - transforms applied to each finger, null for none
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq images
+	   * @return byte[][] right, left and thumb slap in wsq format - null for a slap without any fingers
+	   * 
+	   **/
+	static byte[][] encodeSlaps(BufferedImage[] fingers, Augmentation.Variant variant, SlapOptions options) {
+		BufferedImage[] crops = cropFingers(fingers);
+		byte[][] slaps = new byte[3][];
+		for(int i = 0; i < slaps.length; i++) {
+			int slap = i;
+			slaps[i] = encodeSlap(() -> composeSlap(crops, slap, variant), options);
+		}
+		return slaps;
+	}
+	
+	   /**
+	   * encodeSlap - Composes and encodes one augmented slap from decoded fingers
+	   * 
+	   * @param BufferedImage[] fingers - decoded fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @param int slap - 0 for the right slap, 1 for the left slap and 2 for the thumb slap
+	   * @param Augmentation.Variant variant - transforms applied to each finger, null for none
+	   * @param SlapOptions options - bitrate, ppi and metadata of the generated wsq image
+	   * @return byte[] slap in wsq format as byte array, null for a slap without any fingers
+	   * 
+	   **/
+	static byte[] encodeSlap(BufferedImage[] fingers, int slap, Augmentation.Variant variant, SlapOptions options) {
+		BufferedImage[] crops = cropFingers(fingers);
+		return encodeSlap(() -> composeSlap(crops, slap, variant), options);
+	}
+	
+	private static BufferedImage[] cropFingers(BufferedImage[] fingers) {
+		BufferedImage[] crops = new BufferedImage[fingers.length];
+		for(int i = 0; i < fingers.length; i++) {
+			crops[i] = cropFinger(fingers[i]);
+		}
+		return crops;
+	}
+	
+	   /**
+	   * composeCrops - Composes augmented slaps 13, 14 and 15 from finger crops (see decodeCrop)
+	   * 
+	   * @param BufferedImage[] crops - crops of fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @param Augmentation.Variant variant - transforms applied to each finger, null for none
+	   * @return BufferedImage[] right, left and thumb slap - null for a slap without any fingers
+	   * 
+	   **/
+	static BufferedImage[] composeCrops(BufferedImage[] crops, Augmentation.Variant variant) {
+		return composeCrops(crops, variant, new ResourceAccounting.Span[3]);
+	}
+	
+	   /**
+	   * composeCrops - Composes augmented slaps 13, 14 and 15 from finger crops and keeps the cost of each compose
+	   * 
+	   * @param BufferedImage[] crops - crops of fingers 1 to 10 (index 0 is finger 1), null for missing fingers
+	   * @param Augmentation.Variant variant - transforms applied to each finger, null for none
+	   * @param ResourceAccounting.Span[] costs - receives the cost of each compose for encodeSlap(BufferedImage, ResourceAccounting.Span, SlapOptions)
+	   * @return BufferedImage[] right, left and thumb slap - null for a slap without any fingers
+	   * 
+	   **/
+	static BufferedImage[] composeCrops(BufferedImage[] crops, Augmentation.Variant variant, ResourceAccounting.Span[] costs) {
+		BufferedImage[] slaps = new BufferedImage[3];
+		for(int i = 0; i < slaps.length; i++) {
+			ResourceAccounting.Span span = ResourceAccounting.start();
+			slaps[i] = composeSlap(crops, i, variant);
+			costs[i] = ResourceAccounting.since(span);
+		}
+		return slaps;
+	}
+	
+	private static BufferedImage composeSlap(BufferedImage[] crops, int slap, Augmentation.Variant variant) {
+		switch(slap) {
+		case 0:
+			return noFingers(crops[1], crops[2], crops[3], crops[4]) ? null 
+					: composeRightSlap(crops[1], crops[2], crops[3], crops[4], variant);
+		case 1:
+			return noFingers(crops[6], crops[7], crops[8], crops[9]) ? null 
+					: composeLeftSlap(crops[6], crops[7], crops[8], crops[9], variant);
+		default:
+			return noFingers(crops[0], crops[5]) ? null 
+					: composeThumbSlap(crops[0], crops[5], variant);
+		}
+	}
+	
+	private static boolean noFingers(BufferedImage... fingers) {
+		for(BufferedImage finger : fingers) {
+			if(finger != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	static BufferedImage composeRightSlap(
+			BufferedImage finger2, 
+			BufferedImage finger3, 
+			BufferedImage finger4, 
+			BufferedImage finger5) {
+		return composeRightSlap(finger2, finger3, finger4, finger5, null);
+	}
+	
+	static BufferedImage composeRightSlap(
+			BufferedImage finger2, 
+			BufferedImage finger3, 
+			BufferedImage finger4, 
+			BufferedImage finger5,
+			Augmentation.Variant variant) {
+		long start = System.nanoTime();
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		SlapGenEvents.Compose event = SlapGenEvents.Compose.begin(SlapResult.RIGHT_SLAP, variant, finger2, finger3, finger4, finger5);
+		try {
+			BufferedImage target = newSlapImage();
+			Graphics2D g = (Graphics2D) target.getGraphics();	
+		
+			placeFingerOnImage(g, variant, 2, finger2, 64, 608);
+			placeFingerOnImage(g, variant, 3, finger3, 448, 352);
+			placeFingerOnImage(g, variant, 4, finger4, 864, 416);
+			placeFingerOnImage(g, variant, 5, finger5, 1248, 864);
+			g.dispose();
+			event.commit();
+			SlapGenMetrics.get().composed(start);
+			ResourceAccounting.end(span, "compose");
+			return target;
+		} catch (RuntimeException e) {
+			SlapGenMetrics.get().compose.errors.increment();
+			throw e;
+		}
+	}
+	
+	static BufferedImage composeLeftSlap(
+			BufferedImage finger7, 
+			BufferedImage finger8, 
+			BufferedImage finger9, 
+			BufferedImage finger10) {
+		return composeLeftSlap(finger7, finger8, finger9, finger10, null);
+	}
+	
+	static BufferedImage composeLeftSlap(
+			BufferedImage finger7, 
+			BufferedImage finger8, 
+			BufferedImage finger9, 
+			BufferedImage finger10,
+			Augmentation.Variant variant) {
+		long start = System.nanoTime();
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		SlapGenEvents.Compose event = SlapGenEvents.Compose.begin(SlapResult.LEFT_SLAP, variant, finger7, finger8, finger9, finger10);
+		try {
+			BufferedImage target = newSlapImage();
+			Graphics2D g = (Graphics2D) target.getGraphics();	
+		
+			placeFingerOnImage(g, variant, 7, finger7,1248, 608);
+			placeFingerOnImage(g, variant, 8, finger8,832, 352);
+			placeFingerOnImage(g, variant, 9, finger9,416, 416);
+			placeFingerOnImage(g, variant, 10, finger10,64, 864);
+			g.dispose();
+			event.commit();
+			SlapGenMetrics.get().composed(start);
+			ResourceAccounting.end(span, "compose");
+			return target;
+		} catch (RuntimeException e) {
+			SlapGenMetrics.get().compose.errors.increment();
+			throw e;
+		}
+	}
+	
+	static BufferedImage composeThumbSlap(BufferedImage finger1, BufferedImage finger6) {
+		return composeThumbSlap(finger1, finger6, null);
+	}
+	
+	static BufferedImage composeThumbSlap(BufferedImage finger1, BufferedImage finger6, Augmentation.Variant variant) {
+		long start = System.nanoTime();
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		SlapGenEvents.Compose event = SlapGenEvents.Compose.begin(SlapResult.THUMB_SLAP, variant, finger1, finger6);
+		try {
+			BufferedImage target = newSlapImage();
+			Graphics2D g = (Graphics2D) target.getGraphics();	
+		
+			placeFingerOnImage(g, variant, 6, finger6, 384, 384);
+			placeFingerOnImage(g, variant, 1, finger1, 928, 384);
+			g.dispose();
+			event.commit();
+			SlapGenMetrics.get().composed(start);
+			ResourceAccounting.end(span, "compose");
+			return target;
+		} catch (RuntimeException e) {
+			SlapGenMetrics.get().compose.errors.increment();
+			throw e;
+		}
+	}
+	
+	private static BufferedImage newSlapImage() {
+		BufferedImage target = new BufferedImage(1600, 1500, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = (Graphics2D) target.getGraphics();	
+		g.setBackground(Color.WHITE);
+		g.clearRect(0, 0, target.getWidth(), target.getHeight());
+		g.dispose();
+		return target;
+	}
+	
+	private static void placeFingerOnImage(Graphics2D g, BufferedImage crop, int x, int y) {
+		if(crop != null) {
+			g.drawImage(crop, x, y, null);
+		}
+	}
+	
+	private static void placeFingerOnImage(Graphics2D g, Augmentation.Variant variant, int position, BufferedImage crop, int x, int y) {
+		if(crop == null) {
+			return;
+		}
+		SlapGenEvents.PlaceFinger event = new SlapGenEvents.PlaceFinger();
+		event.begin();
+		if(variant != null) {
+			int[] offset = variant.offset(position);
+			crop = variant.apply(crop, position);
+			x += offset[0];
+			y += offset[1];
+		}
+		placeFingerOnImage(g, crop, x, y);
+		if(event.shouldCommit()) {
+			event.position = position;
+			event.x = x;
+			event.y = y;
+			event.width = crop.getWidth();
+			event.height = crop.getHeight();
+			event.augmented = variant != null;
+			event.commit();
+		}
+	}
+	
+	static BufferedImage decodeFinger(byte[] finger) {
+		try {
+			return decode(new ByteArrayInputStream(finger), finger.length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	   /**
+	   * decodeCrop - Decodes a finger and crops it for placing on a slap
+	   * 
+	   * The crop is read from the decoded finger store if one is set (see setDecodedFingerStore) 
+	   * - only fingers missing from the store are decoded, and then appended to it.
+	   * 
+	   * @param byte[] finger - finger in wsq format, null for a missing finger
+	   * @return BufferedImage Grey Scale (TYPE_BYTE_GRAY) crop of the finger - null for a missing finger
+	   * 
+	   **/
+	static BufferedImage decodeCrop(byte[] finger) {
+		if(finger == null) {
+			return null;
+		}
+		DecodedFingerStore store = decodedFingerStore;
+		if(store == null) {
+			return cropFinger(decodeFinger(finger));
+		}
 		try {
-			BufferedImage image = Util.convert(WSQDecoder.decode(new ByteArrayInputStream(finger)));
-			g.drawImage(cropFinger(image, 320, 448), x, y, null);	//I have set the maximum finger size to 330x440
+			FingerKey key = FingerKey.of(finger);
+			BufferedImage crop = store.get(key);
+			if(crop == null) {
+				crop = cropFinger(decodeFinger(finger));
+				store.put(key, crop);
+			}
+			return crop;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	   /**
+	   * cropAndStore - Crops a finger that had to be decoded anyway and appends the crop to the decoded finger store
+	   * 
+	   * @param byte[] finger - finger in wsq format, the key of the crop in the store
+	   * @param BufferedImage image - the decoded finger, null for a missing finger
+	   * @return BufferedImage crop of the finger - null for a missing finger
+	   * 
+	   **/
+	static BufferedImage cropAndStore(byte[] finger, BufferedImage image) {
+		BufferedImage crop = cropFinger(image);
+		DecodedFingerStore store = decodedFingerStore;
+		if(store != null && crop != null) {
+			try {
+				store.put(FingerKey.of(finger), crop);
 			} catch (IOException e) {
-				e.printStackTrace();
+				throw new UncheckedIOException(e);
+			}
+		}
+		return crop;
+	}
+	
+	   /**
+	   * decodeFinger - Decodes a finger held in a ByteBuffer (e.g. a record of a WsqArchive) without copying it
+	   * 
+	   * @param ByteBuffer finger - finger in wsq format, from position to limit
+	   * @return BufferedImage Grey Scale (TYPE_BYTE_GRAY) image of the finger
+	   * 
+	   **/
+	public static BufferedImage decodeFinger(ByteBuffer finger) throws IOException {
+		return decode(new ByteBufferInputStream(finger), finger.remaining());
+	}
+	
+	private static BufferedImage decode(InputStream wsq, long length) throws IOException {
+		long start = System.nanoTime();
+		ResourceAccounting.Span span = ResourceAccounting.start();
+		SlapGenEvents.Decode event = new SlapGenEvents.Decode();
+		event.begin();
+		try {
+			BufferedImage image = Util.convert(WSQDecoder.decode(wsq));
+			SlapGenMetrics.get().decoded(start, length);
+			ResourceAccounting.end(span, "decode");
+			if(event.shouldCommit()) {
+				event.inputBytes = length;
+				event.width = image.getWidth();
+				event.height = image.getHeight();
+				event.commit();
+			}
+			return image;
+		} catch (IOException | RuntimeException e) {
+			SlapGenMetrics.get().decode.errors.increment();
+			throw e;
+		}
+	}
+	
+	static byte[] encode(BufferedImage image, SlapOptions options) {
+		if(image == null) {
+			return null;
+		}
+		try {
+			return Util.encode(image, options);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	static <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
 			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
 		}
 	}
 	
+	private static BufferedImage fingerCrop(byte[] finger) {
+		try {
+			return decodeCrop(finger);
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
+			return null;
+		}
+	}
+	
+	
+	static BufferedImage cropFinger(BufferedImage finger) {
+		if(finger == null) {
+			return null;
+		}
+		return cropFinger(finger, 320, 448);	//I have set the maximum finger size to 330x440
+	}
 	
 	private static BufferedImage cropFinger(BufferedImage finger, int x, int y) {
  		return finger.getSubimage(finger.getWidth() > x ? finger.getWidth()/2 - x/2 : 0 , 
@@ -0,0 +1,106 @@
+package com.performancetestgurus;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events of SlapGen - finger decode, slap composition and the placing of each
+ * finger on a slap
+ *
+ * Together with the WSQ encoder events (cz.muni.fi.lazon.wsq.Encode and EncodeStage) a
+ * recording shows where the time of a slow slap went. All events are in the SlapGen category
+ * of JDK Mission Control. slapgen.jfc (next to the README) is a low overhead recording template
+ * for production that keeps only the slow operations, slapgen-profile.jfc records all of them:
+ *
+ *   java -XX:StartFlightRecording:settings=slapgen.jfc,maxage=1h,filename=slapgen.jfr ...
+ *
+ * Fields are only filled in when an event is enabled, so a disabled event costs an allocation
+ * and nothing else.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+final class SlapGenEvents {
+
+	private SlapGenEvents() {
+	}
+
+	@Name("com.performancetestgurus.Decode")
+	@Label("Finger Decode")
+	@Category({"SlapGen", "Slaps"})
+	@Description("WSQ decode of one finger")
+	@StackTrace(false)
+	static final class Decode extends Event {
+		@Label("Input Bytes")
+		@DataAmount
+		long inputBytes;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+	}
+
+	@Name("com.performancetestgurus.Compose")
+	@Label("Slap Compose")
+	@Category({"SlapGen", "Slaps"})
+	@Description("Composition of one slap from finger crops with Graphics2D")
+	@StackTrace(false)
+	static final class Compose extends Event {
+		@Label("Slap")
+		@Description("13 right, 14 left, 15 thumbs")
+		int slap;
+
+		@Label("Fingers")
+		int fingers;
+
+		@Label("Augmented")
+		boolean augmented;
+
+		static Compose begin(int slap, Augmentation.Variant variant, Object... fingers) {
+			Compose event = new Compose();
+			if(event.isEnabled()) {
+				event.slap = slap;
+				event.augmented = variant != null;
+				for(Object finger : fingers) {
+					event.fingers += finger == null ? 0 : 1;
+				}
+				event.begin();
+			}
+			return event;
+		}
+	}
+
+	@Name("com.performancetestgurus.PlaceFinger")
+	@Label("Place Finger")
+	@Category({"SlapGen", "Slaps"})
+	@Description("Augmentation and drawing of one finger crop on a slap")
+	@StackTrace(false)
+	static final class PlaceFinger extends Event {
+		@Label("Position")
+		int position;
+
+		@Label("X")
+		int x;
+
+		@Label("Y")
+		int y;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Augmented")
+		boolean augmented;
+	}
+}
@@ -0,0 +1,306 @@
+package com.performancetestgurus;
+
+import java.beans.ConstructorProperties;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Throughput and latency counters of SlapGen - decode, compose and encode of every caller
+ * (UI, BulkApp, SlapService, LoadEmitter ...) are recorded here
+ *
+ * Counters:
+ *   slaps, fingers   - slaps composed and fingers decoded
+ *   encodes          - WSQ images encoded (slaps and re-encoded fingers)
+ *   bytesIn/bytesOut - WSQ bytes decoded and encoded
+ *   per stage        - errors and a latency histogram (see LatencyHistogram)
+ * Gauges:
+ *   encodes in flight, memory budget occupancy (see MemoryBudget) and decoded finger
+ *   store size (see DecodedFingerStore)
+ *
+ * Per operation CPU time and allocation (see ResourceAccounting) are shown when accounting is on.
+ *
+ * All updates are LongAdder increments, so recording does not make the worker threads contend.
+ * register() publishes the counters as an MXBean for JConsole, VisualVM or a JMX exporter.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class SlapGenMetrics implements SlapGenMetricsMXBean {
+
+	public static final String OBJECT_NAME = "com.performancetestgurus:type=SlapGen";
+
+	private static final SlapGenMetrics INSTANCE = new SlapGenMetrics();
+
+	final Stage decode = new Stage();
+	final Stage compose = new Stage();
+	final Stage encode = new Stage();
+
+	private final LongAdder slaps = new LongAdder();
+	private final LongAdder fingers = new LongAdder();
+	private final LongAdder encodes = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder encodesInFlight = new LongAdder();
+
+	private SlapGenMetrics() {
+	}
+
+	public static SlapGenMetrics get() {
+		return INSTANCE;
+	}
+
+	   /**
+	   * register - Registers the metrics with the platform MBean server, does nothing if already registered
+	   *
+	   **/
+	public static void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		} catch (InstanceAlreadyExistsException e) {
+			// registered by another thread
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	   /**
+	   * Stage - Latency and errors of one processing stage
+	   *
+	   **/
+	static final class Stage {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+
+		StageStatistics statistics() {
+			return new StageStatistics(latency.getCount(), errors.sum(), millis(latency.getMeanNanos()),
+					millis(latency.getPercentileNanos(50)), millis(latency.getPercentileNanos(90)),
+					millis(latency.getPercentileNanos(99)), millis(latency.getMaxNanos()));
+		}
+
+		@Override
+		public String toString() {
+			return "errors=" + errors.sum() + " " + latency;
+		}
+	}
+
+	private static double millis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	   /**
+	   * StageStatistics - Snapshot of a stage, mapped to CompositeData by JMX
+	   *
+	   **/
+	public static final class StageStatistics {
+		private final long count;
+		private final long errors;
+		private final double meanMillis;
+		private final double p50Millis;
+		private final double p90Millis;
+		private final double p99Millis;
+		private final double maxMillis;
+
+		@ConstructorProperties({"count", "errors", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"})
+		public StageStatistics(long count, long errors, double meanMillis, double p50Millis, double p90Millis,
+				double p99Millis, double maxMillis) {
+			this.count = count;
+			this.errors = errors;
+			this.meanMillis = meanMillis;
+			this.p50Millis = p50Millis;
+			this.p90Millis = p90Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP90Millis() {
+			return p90Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+	}
+
+	void decoded(long startNanos, long bytes) {
+		decode.latency.recordSince(startNanos);
+		fingers.increment();
+		bytesIn.add(bytes);
+	}
+
+	void composed(long startNanos) {
+		compose.latency.recordSince(startNanos);
+		slaps.increment();
+	}
+
+	void encodeStarted() {
+		encodesInFlight.increment();
+	}
+
+	void encoded(long startNanos, byte[] wsq) {
+		encodesInFlight.decrement();
+		encode.latency.recordSince(startNanos);
+		encodes.increment();
+		bytesOut.add(wsq.length);
+	}
+
+	void encodeFailed() {
+		encodesInFlight.decrement();
+		encode.errors.increment();
+	}
+
+	@Override
+	public long getSlaps() {
+		return slaps.sum();
+	}
+
+	@Override
+	public long getFingers() {
+		return fingers.sum();
+	}
+
+	@Override
+	public long getEncodes() {
+		return encodes.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public StageStatistics getDecode() {
+		return decode.statistics();
+	}
+
+	@Override
+	public StageStatistics getCompose() {
+		return compose.statistics();
+	}
+
+	@Override
+	public StageStatistics getEncode() {
+		return encode.statistics();
+	}
+
+	@Override
+	public long getEncodesInFlight() {
+		return encodesInFlight.sum();
+	}
+
+	@Override
+	public long getMemoryBudgetBytes() {
+		MemoryBudget budget = SlapGen.getMemoryBudget();
+		return budget == null ? 0 : budget.getBudgetBytes();
+	}
+
+	@Override
+	public long getMemoryBudgetUsedBytes() {
+		MemoryBudget budget = SlapGen.getMemoryBudget();
+		return budget == null ? 0 : budget.getUsedBytes();
+	}
+
+	@Override
+	public int getMemoryBudgetWaiting() {
+		MemoryBudget budget = SlapGen.getMemoryBudget();
+		return budget == null ? 0 : budget.getWaiting();
+	}
+
+	@Override
+	public long getMemoryBudgetRejected() {
+		MemoryBudget budget = SlapGen.getMemoryBudget();
+		return budget == null ? 0 : budget.getRejected();
+	}
+
+	@Override
+	public int getDecodedFingerStoreSize() {
+		DecodedFingerStore store = SlapGen.getDecodedFingerStore();
+		return store == null ? 0 : store.size();
+	}
+
+	@Override
+	public boolean isResourceAccounting() {
+		return ResourceAccounting.isEnabled();
+	}
+
+	@Override
+	public void setResourceAccounting(boolean enabled) {
+		ResourceAccounting.setEnabled(enabled);
+	}
+
+	@Override
+	public Map<String, ResourceAccounting.Cost> getResourceCosts() {
+		return ResourceAccounting.get().getCosts();
+	}
+
+	   /**
+	   * reset - Clears the counters, histograms and resource costs, the gauges are not affected
+	   *
+	   **/
+	@Override
+	public void reset() {
+		for(Stage stage : new Stage[] {decode, compose, encode}) {
+			stage.latency.reset();
+			stage.errors.reset();
+		}
+		slaps.reset();
+		fingers.reset();
+		encodes.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		ResourceAccounting.get().reset();
+	}
+
+	@Override
+	public String toString() {
+		return toStageString() + (ResourceAccounting.isEnabled() ? String.format("%n") + ResourceAccounting.get() : "");
+	}
+
+	private String toStageString() {
+		return String.format("slaps=%d fingers=%d encodes=%d in=%dKB out=%dKB in-flight=%d%n"
+				+ "decode     %s%ncompose    %s%nencode     %s",
+				getSlaps(), getFingers(), getEncodes(), getBytesIn() >> 10, getBytesOut() >> 10, getEncodesInFlight(),
+				decode, compose, encode);
+	}
+}
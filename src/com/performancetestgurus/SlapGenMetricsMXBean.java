@@ -0,0 +1,53 @@
+package com.performancetestgurus;
+
+import java.util.Map;
+
+/**
+ * Management interface of SlapGenMetrics - registered as com.performancetestgurus:type=SlapGen
+ *
+ * Stage attributes are composite values (count, errors and latency percentiles in milliseconds)
+ * so they can be read with JConsole, VisualVM or any JMX exporter.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public interface SlapGenMetricsMXBean {
+
+	long getSlaps();
+
+	long getFingers();
+
+	long getEncodes();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	SlapGenMetrics.StageStatistics getDecode();
+
+	SlapGenMetrics.StageStatistics getCompose();
+
+	SlapGenMetrics.StageStatistics getEncode();
+
+	long getEncodesInFlight();
+
+	long getMemoryBudgetBytes();
+
+	long getMemoryBudgetUsedBytes();
+
+	int getMemoryBudgetWaiting();
+
+	long getMemoryBudgetRejected();
+
+	int getDecodedFingerStoreSize();
+
+	boolean isResourceAccounting();
+
+	void setResourceAccounting(boolean enabled);
+
+	Map<String, ResourceAccounting.Cost> getResourceCosts();
+
+	void reset();
+}
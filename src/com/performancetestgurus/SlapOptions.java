@@ -0,0 +1,153 @@
+package com.performancetestgurus;
+
+import cz.muni.fi.lazon.wsq.Encoder;
+
+/**
+ * WSQ encoding options used when generating slaps and re-encoded fingers
+ * 
+ * The defaults match the encoder defaults used by rightSlap, leftSlap, thumbSlap and reEncodeFinger.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+public final class SlapOptions {
+
+	public static final SlapOptions DEFAULT = new Builder().build();
+
+	private final float bitrate;
+	private final int ppi;
+	private final boolean includeMetadata;
+	private final String comment;
+	private final boolean reEncodeFingers;
+	private final Augmentation augmentation;
+	private final long seed;
+
+	private SlapOptions(Builder builder) {
+		bitrate = builder.bitrate;
+		ppi = builder.ppi;
+		includeMetadata = builder.includeMetadata;
+		comment = builder.comment;
+		reEncodeFingers = builder.reEncodeFingers;
+		augmentation = builder.augmentation;
+		seed = builder.seed;
+	}
+
+	public static class Builder {
+		private float bitrate = 2.2f;
+		private int ppi = 500;
+		private boolean includeMetadata = true;
+		private String comment = "";
+		private boolean reEncodeFingers = true;
+		private Augmentation augmentation;
+		private long seed;
+
+		   /**
+		   * @param float bitrate - WSQ bitrate from interval <0.75,2.2>
+		   **/
+		public Builder bitrate(float bitrate) {
+			if(bitrate > 2.2f || bitrate < 0.75f) {
+				throw new IllegalArgumentException("Bitrate must be in <0.75,2.2>");
+			}
+			this.bitrate = bitrate;
+			return this;
+		}
+
+		   /**
+		   * @param int ppi - image resolution written to the wsq header
+		   **/
+		public Builder ppi(int ppi) {
+			if(ppi <= 0) {
+				throw new IllegalArgumentException("PPI must be greater than 0");
+			}
+			this.ppi = ppi;
+			return this;
+		}
+
+		   /**
+		   * @param boolean includeMetadata - if false the NIST_COM metadata is omitted
+		   **/
+		public Builder includeMetadata(boolean includeMetadata) {
+			this.includeMetadata = includeMetadata;
+			return this;
+		}
+
+		   /**
+		   * @param String comment - custom comment written to the metadata
+		   **/
+		public Builder comment(String comment) {
+			this.comment = comment;
+			return this;
+		}
+
+		   /**
+		   * @param boolean reEncodeFingers - if false SlapGen.generate only builds the slaps
+		   **/
+		public Builder reEncodeFingers(boolean reEncodeFingers) {
+			this.reEncodeFingers = reEncodeFingers;
+			return this;
+		}
+
+		   /**
+		   * @param Augmentation augmentation - transforms applied to the fingers of the slaps, null for none
+		   **/
+		public Builder augmentation(Augmentation augmentation) {
+			this.augmentation = augmentation;
+			return this;
+		}
+
+		   /**
+		   * @param long seed - augmentation seed, combined with the identity id so every identity gets its own variant
+		   **/
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public SlapOptions build() {
+			return new SlapOptions(this);
+		}
+	}
+
+	public float getBitrate() {
+		return bitrate;
+	}
+
+	public int getPpi() {
+		return ppi;
+	}
+
+	public boolean isIncludeMetadata() {
+		return includeMetadata;
+	}
+
+	public String getComment() {
+		return comment;
+	}
+
+	public boolean isReEncodeFingers() {
+		return reEncodeFingers;
+	}
+
+	public Augmentation getAugmentation() {
+		return augmentation;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	Augmentation.Variant variant(String id) {
+		return augmentation == null ? null : augmentation.variant(seed ^ Shard.hash(id == null ? "" : id));
+	}
+
+	Encoder encoder(int width, int height) {
+		return new Encoder.Builder(width, height)
+				.quality(bitrate)
+				.ppi(ppi)
+				.includeMetadata(includeMetadata)
+				.comment(comment)
+				.build();
+	}
+}
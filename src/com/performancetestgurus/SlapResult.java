@@ -0,0 +1,71 @@
+package com.performancetestgurus;
+
+/**
+ * Output of SlapGen.generate for one tenprint - the ten re-encoded fingers and slaps 13, 14 and 15
+ * 
+ * All images are in wsq format as byte arrays, missing fingers are null.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+public final class SlapResult {
+
+	public static final int RIGHT_SLAP = 13;
+	public static final int LEFT_SLAP = 14;
+	public static final int THUMB_SLAP = 15;
+
+	private final String id;
+	private final byte[][] fingers;
+	private final byte[] rightSlap;
+	private final byte[] leftSlap;
+	private final byte[] thumbSlap;
+
+	SlapResult(String id, byte[][] fingers, byte[] rightSlap, byte[] leftSlap, byte[] thumbSlap) {
+		this.id = id;
+		this.fingers = fingers;
+		this.rightSlap = rightSlap;
+		this.leftSlap = leftSlap;
+		this.thumbSlap = thumbSlap;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	   /**
+	   * getFinger - Returns a re-encoded finger or slap by its position
+	   * 
+	   * @param int position - finger position 1 to 10, or 13 (right slap), 14 (left slap), 15 (thumb slap)
+	   * @return byte[] image in wsq format as byte array or null if the finger is missing
+	   * 
+	   **/
+	public byte[] getFinger(int position) {
+		switch(position) {
+		case RIGHT_SLAP:
+			return rightSlap;
+		case LEFT_SLAP:
+			return leftSlap;
+		case THUMB_SLAP:
+			return thumbSlap;
+		default:
+			if(position < 1 || position > TenPrint.FINGER_COUNT) {
+				throw new IllegalArgumentException("Unknown finger position : " + position);
+			}
+			return fingers[position - 1];
+		}
+	}
+
+	public byte[] getRightSlap() {
+		return rightSlap;
+	}
+
+	public byte[] getLeftSlap() {
+		return leftSlap;
+	}
+
+	public byte[] getThumbSlap() {
+		return thumbSlap;
+	}
+}
@@ -0,0 +1,541 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP slap service - generates slaps and re-encoded fingers on request
+ *
+ * Usage: SlapService [--port n] [--max-request bytes] [--warmup n] [--threads n]
+ *                    [--memory-budget MB] [--admission-wait ms] [--account]
+ *
+ * Endpoints (POST):
+ *   /slap/13, /slap/14, /slap/15 - one slap as application/octet-stream WSQ (base64 text with ?format=base64)
+ *   /slaps                       - all three slaps as text lines finger13=base64 ...
+ *   /reencode                    - every posted finger re-encoded, as text lines fingerNN=base64
+ *
+ * Fingers are posted either as multipart/form-data with parts finger01 .. finger10 holding the
+ * raw WSQ (or base64 with Content-Transfer-Encoding: base64), or as a text body of
+ * fingerNN=base64 pairs separated by & or new lines. Query parameters bitrate and ppi set the
+ * WSQ options of the response.
+ *
+ * Endpoints (GET):
+ *   /health  - 200 once warm-up has finished, 503 before
+ *   /metrics - request counts and latency histograms per endpoint and per stage (see SlapGenMetrics)
+ *
+ * --memory-budget limits the memory of the encodes running at the same time (see MemoryBudget).
+ * Requests that cannot get their memory within --admission-wait ms (default 5000) get 503.
+ *
+ * --account adds CPU time and allocation per operation to /metrics (see ResourceAccounting).
+ * Work on virtual threads is not sampled, so combine it with --threads n.
+ *
+ * Requests run on virtual threads (JDK 21+, a thread pool on older JDKs). Before the service
+ * reports ready it generates slaps from a synthetic finger so the encoder is JIT compiled and
+ * the first real requests do not pay for it.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public class SlapService {
+
+	private static final int FINGER_WIDTH = 400;
+	private static final int FINGER_HEIGHT = 500;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int maxRequestBytes;
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+	private volatile boolean ready;
+
+	   /**
+	   * SlapService - Binds the service, call start to serve requests
+	   *
+	   * @param int port - TCP port, 0 for any free port
+	   * @param int maxRequestBytes - largest accepted request body
+	   * @param int threads - request threads, 0 for a virtual thread per request
+	   *
+	   **/
+	public SlapService(int port, int maxRequestBytes, int threads) throws IOException {
+		this.maxRequestBytes = maxRequestBytes;
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.executor = threads > 0 ? Executors.newFixedThreadPool(threads) : newRequestExecutor();
+		server.setExecutor(executor);
+		endpoint("/slap/13", exchange -> slap(exchange, 0));
+		endpoint("/slap/14", exchange -> slap(exchange, 1));
+		endpoint("/slap/15", exchange -> slap(exchange, 2));
+		endpoint("/slaps", this::slaps);
+		endpoint("/reencode", this::reEncode);
+		server.createContext("/health", exchange -> respond(exchange, ready ? 200 : 503,
+				"text/plain", (ready ? "ready" : "warming up").getBytes(StandardCharsets.US_ASCII)));
+		server.createContext("/metrics", this::metrics);
+	}
+
+	private static ExecutorService newRequestExecutor() {
+		try {
+			return Util.newVirtualThreadPerTaskExecutor();
+		} catch (UnsupportedOperationException e) {
+			System.out.println("Virtual threads not available - using a thread pool");
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 8080;
+		int maxRequestBytes = 16 * 1024 * 1024;
+		int warmup = 10;
+		int threads = 0;
+		long memoryBudget = 0;
+		long admissionWait = 5000;
+		for(int i = 0; i < args.length; i++) {
+			if(i + 1 >= args.length && !args[i].equals("--account")) {
+				usage();
+			}
+			switch(args[i]) {
+			case "--port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "--max-request":
+				maxRequestBytes = Integer.parseInt(args[++i]);
+				break;
+			case "--warmup":
+				warmup = Integer.parseInt(args[++i]);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "--memory-budget":
+				memoryBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+				break;
+			case "--admission-wait":
+				admissionWait = Long.parseLong(args[++i]);
+				break;
+			case "--account":
+				ResourceAccounting.setEnabled(true);
+				break;
+			default:
+				usage();
+			}
+		}
+		if(memoryBudget > 0) {
+			SlapGen.setMemoryBudget(new MemoryBudget(memoryBudget, admissionWait));
+		}
+		SlapGenMetrics.register();
+		SlapService service = new SlapService(port, maxRequestBytes, threads);
+		service.start();
+		System.out.println("SlapService listening on port " + service.getPort() + " - warming up");
+		long start = System.nanoTime();
+		service.warmUp(warmup);
+		SlapGenMetrics.get().reset();
+		System.out.println(String.format("SlapService ready after %.1fs warm-up", (System.nanoTime() - start) / 1e9));
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SlapService [--port n] [--max-request bytes] [--warmup n] [--threads n]");
+		System.out.println("                    [--memory-budget MB] [--admission-wait ms] [--account]");
+		System.exit(2);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	   /**
+	   * warmUp - Generates slaps from a synthetic finger, then reports the service ready
+	   *
+	   * @param int iterations - number of right slaps generated
+	   *
+	   **/
+	public void warmUp(int iterations) {
+		byte[] finger = SlapGen.encode(syntheticFinger(), SlapOptions.DEFAULT);
+		for(int i = 0; i < iterations; i++) {
+			BufferedImage[] fingers = new BufferedImage[TenPrint.FINGER_COUNT];
+			for(int position = 2; position <= 5; position++) {
+				fingers[position - 1] = SlapGen.decodeFinger(finger);
+			}
+			SlapGen.encode(SlapGen.composeSlaps(fingers)[0], SlapOptions.DEFAULT);
+		}
+		ready = true;
+	}
+
+	   /**
+	   * Ridges with some noise - a blank or flat image is no use for warming up the encoder
+	   **/
+	private static BufferedImage syntheticFinger() {
+		BufferedImage image = new BufferedImage(FINGER_WIDTH, FINGER_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = image.getRaster();
+		Random random = new Random(42);
+		for(int y = 0; y < FINGER_HEIGHT; y++) {
+			for(int x = 0; x < FINGER_WIDTH; x++) {
+				double ridge = Math.sin(Math.hypot(x - FINGER_WIDTH / 2, y - FINGER_HEIGHT / 2) / 1.6);
+				raster.setSample(x, y, 0, Math.max(0, Math.min(255, (int) (128 + 90 * ridge + random.nextGaussian() * 12))));
+			}
+		}
+		return image;
+	}
+
+	private interface Handler {
+		byte[] handle(HttpExchange exchange) throws IOException;
+	}
+
+	   /**
+	   * Endpoint - Request handler with its own counters and latency histogram
+	   *
+	   **/
+	private final class Endpoint implements HttpHandler {
+		final Handler handler;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Endpoint(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			try {
+				if(!ready) {
+					rejected.increment();
+					respond(exchange, 503, "text/plain", "warming up".getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				if(!exchange.getRequestMethod().equals("POST")) {
+					rejected.increment();
+					respond(exchange, 405, "text/plain", "POST only".getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				byte[] response = handler.handle(exchange);
+				if(response != null) {
+					latency.recordSince(start);
+				}
+			} catch (RequestException e) {
+				rejected.increment();
+				respond(exchange, e.status, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+			} catch (RejectedExecutionException e) {
+				rejected.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+			} catch (IOException | RuntimeException e) {
+				errors.increment();
+				e.printStackTrace();
+				respond(exchange, 500, "text/plain", String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private static final class RequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		RequestException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private void endpoint(String path, Handler handler) {
+		Endpoint endpoint = new Endpoint(handler);
+		endpoints.put(path, endpoint);
+		server.createContext(path, endpoint);
+	}
+
+	private byte[] slap(HttpExchange exchange, int slap) throws IOException {
+		SlapOptions options = options(exchange);
+		byte[] wsq = SlapGen.encodeSlap(decode(fingers(exchange)), slap, null, options);
+		if(wsq == null) {
+			throw new RequestException(400, "No fingers for slap " + (SlapResult.RIGHT_SLAP + slap));
+		}
+		if("base64".equals(query(exchange).get("format"))) {
+			return respond(exchange, 200, "text/plain", Base64.getEncoder().encode(wsq));
+		}
+		return respond(exchange, 200, "application/octet-stream", wsq);
+	}
+
+	private byte[] slaps(HttpExchange exchange) throws IOException {
+		SlapOptions options = options(exchange);
+		byte[][] slaps = SlapGen.encodeSlaps(decode(fingers(exchange)), null, options);
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < slaps.length; i++) {
+			if(slaps[i] != null) {
+				append(body, SlapResult.RIGHT_SLAP + i, slaps[i]);
+			}
+		}
+		return respond(exchange, 200, "text/plain", body.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private byte[] reEncode(HttpExchange exchange) throws IOException {
+		SlapOptions options = options(exchange);
+		BufferedImage[] fingers = decode(fingers(exchange));
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < fingers.length; i++) {
+			if(fingers[i] != null) {
+				append(body, i + 1, SlapGen.encode(fingers[i], options));
+			}
+		}
+		return respond(exchange, 200, "text/plain", body.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static void append(StringBuilder body, int position, byte[] wsq) {
+		body.append(String.format("finger%02d=", position)).append(Base64.getEncoder().encodeToString(wsq)).append('\n');
+	}
+
+	private void metrics(HttpExchange exchange) throws IOException {
+		StringBuilder body = new StringBuilder();
+		body.append("ready ").append(ready).append('\n');
+		for(Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+			Endpoint endpoint = entry.getValue();
+			body.append(String.format("%-10s rejected=%d errors=%d %s%n", entry.getKey(),
+					endpoint.rejected.sum(), endpoint.errors.sum(), endpoint.latency));
+		}
+		MemoryBudget budget = SlapGen.getMemoryBudget();
+		if(budget != null) {
+			body.append("memory     ").append(budget).append('\n');
+		}
+		body.append(SlapGenMetrics.get()).append('\n');
+		try {
+			respond(exchange, 200, "text/plain", body.toString().getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static byte[] respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+		return body;
+	}
+
+	private static SlapOptions options(HttpExchange exchange) throws RequestException {
+		Map<String, String> query = query(exchange);
+		SlapOptions.Builder options = new SlapOptions.Builder();
+		try {
+			if(query.containsKey("bitrate")) {
+				options.bitrate(Float.parseFloat(query.get("bitrate")));
+			}
+			if(query.containsKey("ppi")) {
+				options.ppi(Integer.parseInt(query.get("ppi")));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new RequestException(400, e.getMessage());
+		}
+		return options.build();
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) {
+		Map<String, String> query = new LinkedHashMap<>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if(raw != null) {
+			for(String pair : raw.split("&")) {
+				int equals = pair.indexOf('=');
+				if(equals > 0) {
+					query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+							URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return query;
+	}
+
+	private static BufferedImage[] decode(byte[][] fingers) throws RequestException {
+		BufferedImage[] images = new BufferedImage[fingers.length];
+		for(int i = 0; i < fingers.length; i++) {
+			if(fingers[i] != null) {
+				try {
+					images[i] = SlapGen.decodeFinger(fingers[i]);
+				} catch (RuntimeException e) {
+					throw new RequestException(400, String.format("finger%02d is not a valid WSQ image : %s", i + 1, e));
+				}
+			}
+		}
+		return images;
+	}
+
+	   /**
+	   * Reads the posted fingers, index 0 is finger 1
+	   **/
+	private byte[][] fingers(HttpExchange exchange) throws IOException {
+		byte[] body = readBody(exchange);
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		byte[][] fingers = new byte[TenPrint.FINGER_COUNT][];
+		if(contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
+			parseMultipart(body, boundary(contentType), fingers);
+		} else {
+			parseText(new String(body, StandardCharsets.US_ASCII), fingers);
+		}
+		return fingers;
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if(length != null && Long.parseLong(length.trim()) > maxRequestBytes) {
+			throw new RequestException(413, "Request larger than " + maxRequestBytes + " bytes");
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(length != null ? Integer.parseInt(length.trim()) : 64 * 1024);
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = exchange.getRequestBody()) {
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				if(body.size() + read > maxRequestBytes) {
+					throw new RequestException(413, "Request larger than " + maxRequestBytes + " bytes");
+				}
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static int position(String name) throws RequestException {
+		if(name.startsWith("finger")) {
+			try {
+				int position = Integer.parseInt(name.substring(6));
+				if(position >= 1 && position <= TenPrint.FINGER_COUNT) {
+					return position;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		throw new RequestException(400, "Unknown field " + name + " - use finger01 to finger10");
+	}
+
+	private static byte[] decodeBase64(String name, String value) throws RequestException {
+		try {
+			return Base64.getMimeDecoder().decode(value);
+		} catch (IllegalArgumentException e) {
+			throw new RequestException(400, name + " is not valid base64");
+		}
+	}
+
+	private static void parseText(String body, byte[][] fingers) throws RequestException {
+		for(String pair : body.split("[&\r\n]+")) {
+			if(pair.trim().isEmpty()) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			if(equals <= 0) {
+				throw new RequestException(400, "Expected fingerNN=base64 : " + pair.substring(0, Math.min(pair.length(), 40)));
+			}
+			String name = pair.substring(0, equals).trim();
+			String value = pair.substring(equals + 1).trim();
+			if(value.indexOf('%') >= 0) {
+				value = URLDecoder.decode(value, StandardCharsets.US_ASCII);
+			}
+			// a form encoded + arrives as a space, the MIME decoder would silently drop it
+			fingers[position(name) - 1] = decodeBase64(name, value.replace(' ', '+'));
+		}
+	}
+
+	private static String boundary(String contentType) throws RequestException {
+		for(String parameter : contentType.split(";")) {
+			String trimmed = parameter.trim();
+			if(trimmed.toLowerCase().startsWith("boundary=")) {
+				String boundary = trimmed.substring(9);
+				return boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1
+						? boundary.substring(1, boundary.length() - 1) : boundary;
+			}
+		}
+		throw new RequestException(400, "Multipart request without boundary");
+	}
+
+	private static void parseMultipart(byte[] body, String boundary, byte[][] fingers) throws RequestException {
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		int part = indexOf(body, delimiter, 0);
+		while(part >= 0) {
+			int start = part + delimiter.length;
+			if(start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') {
+				return;	// closing delimiter
+			}
+			int headersEnd = indexOf(body, headerEnd, start);
+			int next = indexOf(body, delimiter, start);
+			if(headersEnd < 0 || next < 0 || headersEnd > next) {
+				throw new RequestException(400, "Malformed multipart request");
+			}
+			String headers = new String(body, start, headersEnd - start, StandardCharsets.US_ASCII);
+			int contentEnd = next - 2;	// CRLF in front of the delimiter
+			byte[] content = Arrays.copyOfRange(body, headersEnd + headerEnd.length, Math.max(contentEnd, headersEnd + headerEnd.length));
+			String name = headerParameter(headers, "name");
+			if(name == null) {
+				throw new RequestException(400, "Multipart part without a name");
+			}
+			fingers[position(name) - 1] = headers.toLowerCase().contains("content-transfer-encoding: base64")
+					? decodeBase64(name, new String(content, StandardCharsets.US_ASCII)) : content;
+			part = next;
+		}
+		throw new RequestException(400, "Malformed multipart request");
+	}
+
+	private static String headerParameter(String headers, String parameter) {
+		for(String line : headers.split("\r\n")) {
+			if(!line.toLowerCase().startsWith("content-disposition:")) {
+				continue;
+			}
+			for(String field : line.split(";")) {
+				String trimmed = field.trim();
+				if(trimmed.startsWith(parameter + "=")) {
+					String value = trimmed.substring(parameter.length() + 1);
+					return value.startsWith("\"") && value.endsWith("\"") && value.length() > 1
+							? value.substring(1, value.length() - 1) : value;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer:
+		for(int i = from; i <= data.length - pattern.length; i++) {
+			for(int j = 0; j < pattern.length; j++) {
+				if(data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
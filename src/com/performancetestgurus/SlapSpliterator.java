@@ -0,0 +1,73 @@
+package com.performancetestgurus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.Spliterator;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator that generates slaps lazily from a spliterator of tenprints - see SlapGen.stream
+ * 
+ * Splits are delegated to the source spliterator, so a stream of tenprints splits for 
+ * parallel processing the same way the source does. All splits share one semaphore which
+ * caps the number of tenprints being decoded, composed and encoded at the same time,
+ * so the heap used by decoded images stays flat however large the source is.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+final class SlapSpliterator implements Spliterator<SlapResult> {
+
+	private static final int CARRIED_CHARACTERISTICS = ORDERED | SIZED | SUBSIZED | IMMUTABLE | CONCURRENT;
+
+	private final Spliterator<TenPrint> source;
+	private final SlapOptions options;
+	private final Semaphore inFlight;
+
+	SlapSpliterator(Spliterator<TenPrint> source, SlapOptions options, Semaphore inFlight) {
+		this.source = source;
+		this.options = options;
+		this.inFlight = inFlight;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super SlapResult> action) {
+		return source.tryAdvance(tenPrint -> action.accept(generate(tenPrint)));
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super SlapResult> action) {
+		source.forEachRemaining(tenPrint -> action.accept(generate(tenPrint)));
+	}
+
+	private SlapResult generate(TenPrint tenPrint) {
+		inFlight.acquireUninterruptibly();
+		try {
+			return SlapGen.generate(tenPrint, options);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to generate slaps for " + tenPrint.getId(), e);
+		} finally {
+			inFlight.release();
+		}
+	}
+
+	@Override
+	public Spliterator<SlapResult> trySplit() {
+		Spliterator<TenPrint> split = source.trySplit();
+		return split == null ? null : new SlapSpliterator(split, options, inFlight);
+	}
+
+	@Override
+	public long estimateSize() {
+		return source.estimateSize();
+	}
+
+	@Override
+	public int characteristics() {
+		return (source.characteristics() & CARRIED_CHARACTERISTICS) | NONNULL;
+	}
+}
@@ -0,0 +1,448 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import cz.muni.fi.lazon.wsq.Encoder;
+
+/**
+ * Procedural fingerprint generator - fingerprint-like 8 bit images for benchmark corpora,
+ * so no real biometric data has to be moved onto benchmark machines
+ *
+ * Usage: SyntheticFingerprints directory --identities n [--seed s] [--width w] [--height h]
+ *                              [--ridge-period px] [--bitrate f] [--workers n]
+ *        SyntheticFingerprints preview image.png [--seed s] [--width w] [--height h] [--ridge-period px]
+ *
+ * Every image is grown the way ridge patterns are synthesised in the literature:
+ *   orientation - zero-pole model, half the sum of the angles to the cores minus half the sum of
+ *                 the angles to the deltas (loop: 1 core and 1 delta, whorl: 2 and 2, arch: none)
+ *   ridges      - sparse random noise, filtered a few times with a Gabor filter tuned to the
+ *                 local orientation and the ridge period and saturated after each pass
+ *   rendering   - elliptic finger mask with a soft edge, uneven pressure and sensor noise
+ * The images have the wavelet statistics of real prints, so quantize and the Huffman stages of
+ * the encoder behave as in production - unlike flat or random test images.
+ *
+ * The corpus directory gets <id>_NN.wsq for fingers 1 to 10 of every identity (encoded with
+ * cz.muni.fi.lazon.wsq.Encoder) and manifest.csv for BulkApp, ThroughputBenchmark and the other
+ * manifest tools, with slap outputs in the out subdirectory. The same seed gives the same corpus.
+ * Only StrictMath and SplittableRandom are used, so the pixels are the same on every JVM -
+ * GoldenOutputs relies on that.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class SyntheticFingerprints {
+
+	private static final int ORIENTATIONS = 32;
+	private static final int WHITE = 255;
+
+	private final int width;
+	private final int height;
+	private final double ridgePeriod;
+	private final int iterations;
+
+	private SyntheticFingerprints(Builder builder) {
+		width = builder.width;
+		height = builder.height;
+		ridgePeriod = builder.ridgePeriod;
+		iterations = builder.iterations;
+	}
+
+	public static class Builder {
+		private int width = 400;
+		private int height = 500;
+		private double ridgePeriod = 9;
+		private int iterations = 5;
+
+		   /**
+		   * @param int width - image width, at least 64
+		   * @param int height - image height, at least 64
+		   **/
+		public Builder size(int width, int height) {
+			if(width < 64 || height < 64) {
+				throw new IllegalArgumentException("Fingerprint must be at least 64x64");
+			}
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		   /**
+		   * @param double pixels - distance between ridges, about 9 pixels at 500 ppi
+		   **/
+		public Builder ridgePeriod(double pixels) {
+			if(pixels < 4 || pixels > 30) {
+				throw new IllegalArgumentException("Ridge period must be in <4,30> pixels");
+			}
+			this.ridgePeriod = pixels;
+			return this;
+		}
+
+		   /**
+		   * @param int iterations - Gabor filter passes, more gives cleaner ridges
+		   **/
+		public Builder iterations(int iterations) {
+			if(iterations < 1) {
+				throw new IllegalArgumentException("At least one iteration is needed");
+			}
+			this.iterations = iterations;
+			return this;
+		}
+
+		public SyntheticFingerprints build() {
+			return new SyntheticFingerprints(this);
+		}
+	}
+
+	   /**
+	   * generate - Grows one fingerprint
+	   *
+	   * @param long seed - the same seed always gives the same fingerprint
+	   * @return BufferedImage Grey Scale (TYPE_BYTE_GRAY) fingerprint on a white background
+	   *
+	   **/
+	public BufferedImage generate(long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		double period = ridgePeriod * (0.9 + 0.2 * random.nextDouble());
+		double[] mask = mask(random);
+		int[] orientation = orientationField(random);
+		double[] ridges = ridges(random, orientation, mask, period);
+		return render(random, ridges, mask);
+	}
+
+	   /**
+	   * encode - Grows one fingerprint and encodes it as WSQ
+	   *
+	   * @param long seed - fingerprint seed
+	   * @param float bitrate - WSQ bit rate in <0.75,2.2>
+	   * @return byte[] fingerprint in wsq format
+	   *
+	   **/
+	public byte[] encode(long seed, float bitrate) throws IOException {
+		BufferedImage image = generate(seed);
+		byte[] pixels = (byte[]) image.getRaster().getDataElements(0, 0, width, height, null);
+		return new Encoder.Builder(width, height).quality(bitrate).build().encode(pixels);
+	}
+
+	private double[] mask(SplittableRandom random) {
+		double centreX = width * (0.48 + 0.04 * random.nextDouble());
+		double centreY = height * (0.5 + 0.04 * random.nextDouble());
+		double radiusX = width * (0.38 + 0.06 * random.nextDouble());
+		double radiusY = height * (0.42 + 0.05 * random.nextDouble());
+		double edge = 8;
+		double[] mask = new double[width * height];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				double dx = (x - centreX) / radiusX;
+				double dy = (y - centreY) / radiusY;
+				double distance = (1 - StrictMath.sqrt(dx * dx + dy * dy)) * Math.min(radiusX, radiusY);	// pixels inside the edge
+				mask[y * width + x] = Math.max(0, Math.min(1, distance / edge));
+			}
+		}
+		return mask;
+	}
+
+	// ridge orientation per pixel, quantised to ORIENTATIONS bins over <0,PI)
+	private int[] orientationField(SplittableRandom random) {
+		List<double[]> cores = new ArrayList<>();
+		List<double[]> deltas = new ArrayList<>();
+		double pattern = random.nextDouble();
+		double jitter = 0.05;
+		if(pattern < 0.6) {
+			double side = random.nextBoolean() ? 1 : -1;	// left or right loop
+			cores.add(point(random, 0.5, 0.42, jitter));
+			deltas.add(point(random, 0.5 + side * 0.3, 0.75, jitter));
+		} else if(pattern < 0.9) {
+			cores.add(point(random, 0.46, 0.45, jitter / 2));
+			cores.add(point(random, 0.54, 0.5, jitter / 2));
+			deltas.add(point(random, 0.18, 0.78, jitter));
+			deltas.add(point(random, 0.82, 0.78, jitter));
+		}
+		double rotation = (random.nextDouble() - 0.5) * StrictMath.toRadians(20);
+		double archHeight = 0.1 + 0.1 * random.nextDouble();
+
+		int[] orientation = new int[width * height];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				double angle;
+				if(cores.isEmpty()) {
+					// arch - ridges are horizontal lines with a bump in the middle, flattening towards the bottom
+					double u = (x - width / 2.0) / (0.3 * width);
+					double slope = 2 * archHeight * height * (1 - (double) y / height) * u / (0.3 * width) * StrictMath.exp(-u * u);
+					angle = StrictMath.atan(slope);
+				} else {
+					angle = 0;
+					for(double[] core : cores) {
+						angle += 0.5 * StrictMath.atan2(y - core[1], x - core[0]);
+					}
+					for(double[] delta : deltas) {
+						angle -= 0.5 * StrictMath.atan2(y - delta[1], x - delta[0]);
+					}
+				}
+				angle += rotation;
+				int bin = (int) Math.floor(angle / Math.PI * ORIENTATIONS) % ORIENTATIONS;
+				orientation[y * width + x] = bin < 0 ? bin + ORIENTATIONS : bin;
+			}
+		}
+		return orientation;
+	}
+
+	private double[] point(SplittableRandom random, double x, double y, double jitter) {
+		return new double[] {
+				width * (x + jitter * (random.nextDouble() * 2 - 1)),
+				height * (y + jitter * (random.nextDouble() * 2 - 1))};
+	}
+
+	private double[] ridges(SplittableRandom random, int[] orientation, double[] mask, double period) {
+		double sigma = period / 3;
+		int radius = (int) Math.ceil(2 * sigma * 1.3);
+		int size = 2 * radius + 1;
+		double[][] kernels = new double[ORIENTATIONS][];
+		for(int bin = 0; bin < ORIENTATIONS; bin++) {
+			kernels[bin] = gabor((bin + 0.5) * Math.PI / ORIENTATIONS, 1 / period, sigma, radius);
+		}
+
+		// field padded by the kernel radius on every side, so the filter needs no bounds checks
+		int stride = width + 2 * radius;
+		double[] field = new double[stride * (height + 2 * radius)];
+		double[] next = new double[field.length];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				if(random.nextDouble() < 0.02) {
+					field[(y + radius) * stride + x + radius] = random.nextBoolean() ? 1 : -1;
+				}
+			}
+		}
+		for(int pass = 0; pass < iterations; pass++) {
+			double sumSquares = 0;
+			int counted = 0;
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					if(mask[y * width + x] <= 0 && pass == iterations - 1) {
+						continue;
+					}
+					double[] kernel = kernels[orientation[y * width + x]];
+					double sum = 0;
+					int k = 0;
+					for(int ky = 0; ky < size; ky++) {
+						int row = (y + ky) * stride + x;
+						for(int kx = 0; kx < size; kx++) {
+							sum += kernel[k++] * field[row + kx];
+						}
+					}
+					next[(y + radius) * stride + x + radius] = sum;
+					sumSquares += sum * sum;
+					counted++;
+				}
+			}
+			double rms = StrictMath.sqrt(sumSquares / Math.max(1, counted));
+			for(int i = 0; i < next.length; i++) {
+				field[i] = rms == 0 ? 0 : StrictMath.tanh(1.5 * next[i] / rms);
+			}
+		}
+		double[] ridges = new double[width * height];
+		for(int y = 0; y < height; y++) {
+			System.arraycopy(field, (y + radius) * stride + radius, ridges, y * width, width);
+		}
+		return ridges;
+	}
+
+	// zero mean Gabor kernel, the cosine runs across the ridges, the envelope is longer along them
+	private static double[] gabor(double ridgeAngle, double frequency, double sigma, int radius) {
+		int size = 2 * radius + 1;
+		double[] kernel = new double[size * size];
+		double normalX = -StrictMath.sin(ridgeAngle);
+		double normalY = StrictMath.cos(ridgeAngle);
+		double sigmaAcross = sigma;
+		double sigmaAlong = sigma * 1.3;
+		double sum = 0;
+		double weights = 0;
+		for(int y = -radius; y <= radius; y++) {
+			for(int x = -radius; x <= radius; x++) {
+				double across = x * normalX + y * normalY;
+				double along = x * normalY - y * normalX;
+				double envelope = StrictMath.exp(-0.5 * (across * across / (sigmaAcross * sigmaAcross) + along * along / (sigmaAlong * sigmaAlong)));
+				double value = envelope * StrictMath.cos(2 * Math.PI * frequency * across);
+				kernel[(y + radius) * size + x + radius] = value;
+				sum += value;
+				weights += envelope;
+			}
+		}
+		for(int y = -radius; y <= radius; y++) {
+			for(int x = -radius; x <= radius; x++) {
+				int i = (y + radius) * size + x + radius;
+				double across = x * normalX + y * normalY;
+				double along = x * normalY - y * normalX;
+				kernel[i] -= sum / weights * StrictMath.exp(-0.5 * (across * across / (sigmaAcross * sigmaAcross) + along * along / (sigmaAlong * sigmaAlong)));
+			}
+		}
+		return kernel;
+	}
+
+	private BufferedImage render(SplittableRandom random, double[] ridges, double[] mask) {
+		// uneven pressure - a few random low frequency waves
+		double[] waves = new double[12];
+		for(int i = 0; i < waves.length; i++) {
+			waves[i] = random.nextDouble();
+		}
+		byte[] pixels = new byte[width * height];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				int i = y * width + x;
+				if(mask[i] <= 0) {
+					pixels[i] = (byte) WHITE;
+					continue;
+				}
+				double pressure = 0.75;
+				for(int w = 0; w < waves.length; w += 4) {
+					pressure += 0.08 * StrictMath.sin(2 * Math.PI * (waves[w] * 2 * x / width + waves[w + 1] * 2 * y / height + waves[w + 2]))
+							* (0.5 + waves[w + 3]);
+				}
+				double ink = (ridges[i] + 1) / 2 * mask[i] * Math.max(0.3, Math.min(1, pressure));
+				double noise = 12 * (random.nextDouble() + random.nextDouble() + random.nextDouble() - 1.5);	// standard deviation 6
+				double grey = WHITE - 15 - 200 * ink + noise;
+				pixels[i] = (byte) Math.max(0, Math.min(WHITE, Math.round(grey)));
+			}
+		}
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		image.getRaster().setDataElements(0, 0, width, height, pixels);
+		return image;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			usage();
+		}
+		boolean preview = args[0].equals("preview");
+		Path target = Paths.get(args[preview ? 1 : 0]);
+		int identities = 0;
+		long seed = 0;
+		float bitrate = 2.2f;
+		int workers = Runtime.getRuntime().availableProcessors();
+		Builder builder = new Builder();
+		int width = 400;
+		int height = 500;
+		for(int i = preview ? 2 : 1; i < args.length; i++) {
+			switch(args[i]) {
+			case "--identities":
+				identities = Integer.parseInt(value(args, ++i));
+				break;
+			case "--seed":
+				seed = Long.parseLong(value(args, ++i));
+				break;
+			case "--width":
+				width = Integer.parseInt(value(args, ++i));
+				break;
+			case "--height":
+				height = Integer.parseInt(value(args, ++i));
+				break;
+			case "--ridge-period":
+				builder.ridgePeriod(Double.parseDouble(value(args, ++i)));
+				break;
+			case "--bitrate":
+				bitrate = Float.parseFloat(value(args, ++i));
+				break;
+			case "--workers":
+				workers = Integer.parseInt(value(args, ++i));
+				break;
+			default:
+				usage();
+			}
+		}
+		SyntheticFingerprints generator = builder.size(width, height).build();
+		if(preview) {
+			ImageIO.write(generator.generate(seed), "png", target.toFile());
+			return;
+		}
+		if(identities <= 0) {
+			usage();
+		}
+		long start = System.nanoTime();
+		generator.writeCorpus(target, identities, seed, bitrate, workers);
+		System.out.println(String.format("%d identities (%d fingers) written to %s in %.2fs",
+				identities, identities * TenPrint.FINGER_COUNT, target, (System.nanoTime() - start) / 1e9));
+	}
+
+	private static String value(String[] args, int i) {
+		if(i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SyntheticFingerprints <directory> --identities n [--seed s] [--width w] [--height h]");
+		System.out.println("                              [--ridge-period px] [--bitrate f] [--workers n]");
+		System.out.println("        SyntheticFingerprints preview <image.png> [--seed s] [--width w] [--height h] [--ridge-period px]");
+		System.exit(2);
+	}
+
+	   /**
+	   * writeCorpus - Writes the fingers of synthetic identities and their manifest
+	   *
+	   * At most 4 fingers per worker are in flight, so the memory used does not grow with the corpus.
+	   *
+	   * @param Path directory - corpus directory, created if needed
+	   * @param int identities - number of identities, ten fingers each
+	   * @param long seed - corpus seed
+	   * @param float bitrate - WSQ bit rate of the fingers
+	   * @param int workers - generator threads
+	   *
+	   **/
+	public void writeCorpus(Path directory, int identities, long seed, float bitrate, int workers) throws IOException {
+		Files.createDirectories(directory.resolve("out"));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+		try (BufferedWriter manifest = Files.newBufferedWriter(directory.resolve("manifest.csv"), StandardCharsets.UTF_8)) {
+			manifest.write("id,finger01,finger02,finger03,finger04,finger05,finger06,finger07,finger08,finger09,finger10,finger13,finger14,finger15\n");
+			int window = Math.max(1, workers) * 4;
+			ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>(window);
+			for(int identity = 0; identity < identities; identity++) {
+				String id = String.format("synth%06d", identity);
+				StringBuilder line = new StringBuilder(id);
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					Path file = directory.resolve(String.format("%s_%02d.wsq", id, position));
+					long fingerSeed = Util.mix64(Util.mix64(seed) + (long) identity * TenPrint.FINGER_COUNT + position);
+					if(inFlight.size() >= window) {
+						SlapGen.join(inFlight.removeFirst());
+					}
+					inFlight.addLast(CompletableFuture.runAsync(() -> {
+						try {
+							Files.write(file, encode(fingerSeed, bitrate));
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}, pool));
+					line.append(',').append(Manifest.quote(file.toAbsolutePath().toString()));
+				}
+				for(int slap = SlapResult.RIGHT_SLAP; slap <= SlapResult.THUMB_SLAP; slap++) {
+					line.append(',').append(Manifest.quote(directory.resolve("out" + File.separator + id + "_" + slap + ".wsq").toAbsolutePath().toString()));
+				}
+				manifest.write(line.append('\n').toString());
+			}
+			SlapGen.join(CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Combinatorial synthetic identities - each identity draws its ten fingers from per-position
+ * pools, so a few hundred real fingers give billions of distinct tenprints
+ *
+ * Usage: SyntheticIdentities manifest container --count n [--first k] [--seed s] [--prefix p]
+ *                            [--workers n] [--shard i/N] [--fingers] [--bitrate f] [--ppi n]
+ *
+ * The pool of position p holds the distinct fingers p (by content, see FingerKey) of all
+ * identities of the manifest. Identity k (0 to size()-1) is mapped by a seeded Feistel
+ * permutation onto a combination number, which is split into one pool index per position
+ * (mixed radix). Nothing per identity is stored: identity k is computed directly, the same
+ * seed always gives the same identities and no combination is used twice.
+ *
+ * All pool fingers are decoded once, when the pools are built, and held in memory - slaps of
+ * an identity are composed from the decoded fingers, so the decode cost depends on the pool
+ * size, not on the number of identities. The decoded pools need about width x height bytes
+ * per finger.
+ *
+ * The command line tool writes identities first to first+count-1 (only those of --shard, see
+ * Shard) to a SlapContainer, in identity order.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class SyntheticIdentities {
+
+	private static final int ROUNDS = 4;
+	private static final long MAX_SIZE = 1L << 62;
+
+	private final byte[][][] wsq = new byte[TenPrint.FINGER_COUNT][][];
+	private final BufferedImage[][] decoded = new BufferedImage[TenPrint.FINGER_COUNT][];
+	private final String prefix;
+	private final long size;
+	private final int halfBits;
+	private final long halfMask;
+	private final long[] keys = new long[ROUNDS];
+
+	   /**
+	   * SyntheticIdentities - Builds and decodes the finger pools
+	   *
+	   * @param List<List<byte[]>> pools - WSQ fingers per position 1 to 10 (index 0 is finger 1), an empty pool leaves the finger out
+	   * @param long seed - seed of the identity permutation
+	   * @param String prefix - prefix of the identity ids, followed by the identity number
+	   * @param int workers - decoder threads
+	   *
+	   **/
+	public SyntheticIdentities(List<List<byte[]>> pools, long seed, String prefix, int workers) throws IOException {
+		if(pools.size() != TenPrint.FINGER_COUNT) {
+			throw new IllegalArgumentException("Expected " + TenPrint.FINGER_COUNT + " finger pools, got " + pools.size());
+		}
+		this.prefix = prefix;
+		long combinations = 1;
+		boolean anyFinger = false;
+		for(int i = 0; i < TenPrint.FINGER_COUNT; i++) {
+			wsq[i] = pools.get(i).toArray(new byte[0][]);
+			anyFinger |= wsq[i].length > 0;
+			combinations = multiply(combinations, Math.max(1, wsq[i].length));
+		}
+		if(!anyFinger) {
+			throw new IllegalArgumentException("All finger pools are empty");
+		}
+		this.size = combinations;
+		int bits = 64 - Long.numberOfLeadingZeros(size - 1);
+		this.halfBits = (bits + 1) / 2;
+		this.halfMask = (1L << halfBits) - 1;
+		SplittableRandom random = new SplittableRandom(seed);
+		for(int i = 0; i < ROUNDS; i++) {
+			keys[i] = random.nextLong();
+		}
+		decodePools(workers);
+	}
+
+	   /**
+	   * fromManifest - Builds the pools from the fingers of a manifest
+	   *
+	   * @param Path manifest - CSV or TSV manifest file, only the finger columns are used
+	   * @param long seed - seed of the identity permutation
+	   * @param String prefix - prefix of the identity ids
+	   * @param int workers - decoder threads
+	   * @return SyntheticIdentities identities over the distinct fingers of the manifest
+	   *
+	   **/
+	public static SyntheticIdentities fromManifest(Path manifest, long seed, String prefix, int workers) throws IOException {
+		List<Map<FingerKey, byte[]>> distinct = new ArrayList<>(TenPrint.FINGER_COUNT);
+		for(int i = 0; i < TenPrint.FINGER_COUNT; i++) {
+			distinct.add(new LinkedHashMap<>());
+		}
+		try (Stream<Manifest.Record> records = Manifest.records(manifest)) {
+			for(Manifest.Record record : (Iterable<Manifest.Record>) records::iterator) {
+				TenPrint tenPrint = record.readTenPrint();
+				for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+					byte[] finger = tenPrint.getFinger(position);
+					if(finger != null) {
+						distinct.get(position - 1).putIfAbsent(FingerKey.of(finger), finger);
+					}
+				}
+			}
+		}
+		List<List<byte[]>> pools = new ArrayList<>(TenPrint.FINGER_COUNT);
+		for(Map<FingerKey, byte[]> pool : distinct) {
+			pools.add(new ArrayList<>(pool.values()));
+		}
+		return new SyntheticIdentities(pools, seed, prefix, workers);
+	}
+
+	private void decodePools(int workers) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+		try {
+			List<CompletableFuture<Void>> decodes = new ArrayList<>();
+			for(int i = 0; i < TenPrint.FINGER_COUNT; i++) {
+				BufferedImage[] images = decoded[i] = new BufferedImage[wsq[i].length];
+				byte[][] fingers = wsq[i];
+				for(int j = 0; j < fingers.length; j++) {
+					int index = j;
+					decodes.add(CompletableFuture.runAsync(() -> images[index] = SlapGen.decodeFinger(fingers[index]), pool));
+				}
+			}
+			SlapGen.join(CompletableFuture.allOf(decodes.toArray(new CompletableFuture<?>[0])));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static long multiply(long a, long b) {
+		return a > MAX_SIZE / b ? MAX_SIZE : Math.min(MAX_SIZE, a * b);
+	}
+
+	   /**
+	   * size - Number of distinct identities, capped at 2^62
+	   *
+	   **/
+	public long size() {
+		return size;
+	}
+
+	   /**
+	   * getPoolSize - Number of distinct fingers at a position
+	   *
+	   * @param int position - finger position 1 to 10
+	   *
+	   **/
+	public int getPoolSize(int position) {
+		return wsq[position - 1].length;
+	}
+
+	public String getId(long identity) {
+		return prefix + identity;
+	}
+
+	   /**
+	   * indices - Pool index of every finger of an identity
+	   *
+	   * @param long identity - identity number, 0 to size()-1
+	   * @return int[] pool index per position 1 to 10 (index 0 is finger 1), -1 for an empty pool
+	   *
+	   **/
+	public int[] indices(long identity) {
+		if(identity < 0 || identity >= size) {
+			throw new IndexOutOfBoundsException("Identity " + identity + " not in <0," + size + ")");
+		}
+		long combination = permute(identity);
+		int[] indices = new int[TenPrint.FINGER_COUNT];
+		for(int i = 0; i < TenPrint.FINGER_COUNT; i++) {
+			int radix = wsq[i].length;
+			if(radix == 0) {
+				indices[i] = -1;
+			} else {
+				indices[i] = (int) (combination % radix);
+				combination /= radix;
+			}
+		}
+		return indices;
+	}
+
+	   /**
+	   * tenPrint - The WSQ fingers of an identity, e.g. for SlapGen.generate - generate(identity, options)
+	   * gives the same slaps without decoding the fingers again
+	   *
+	   * @param long identity - identity number, 0 to size()-1
+	   * @return TenPrint fingers of the identity - shared arrays from the pools, do not modify
+	   *
+	   **/
+	public TenPrint tenPrint(long identity) {
+		int[] indices = indices(identity);
+		byte[][] fingers = new byte[TenPrint.FINGER_COUNT][];
+		for(int i = 0; i < fingers.length; i++) {
+			fingers[i] = indices[i] < 0 ? null : wsq[i][indices[i]];
+		}
+		return new TenPrint(getId(identity), fingers);
+	}
+
+	   /**
+	   * fingers - The decoded fingers of an identity, without decoding
+	   *
+	   * @param long identity - identity number, 0 to size()-1
+	   * @return BufferedImage[] decoded fingers 1 to 10 (index 0 is finger 1) - shared images from the pools, do not modify
+	   *
+	   **/
+	public BufferedImage[] fingers(long identity) {
+		int[] indices = indices(identity);
+		BufferedImage[] fingers = new BufferedImage[TenPrint.FINGER_COUNT];
+		for(int i = 0; i < fingers.length; i++) {
+			fingers[i] = indices[i] < 0 ? null : decoded[i][indices[i]];
+		}
+		return fingers;
+	}
+
+	   /**
+	   * generate - Composes and encodes the slaps of an identity from the decoded pools
+	   *
+	   * @param long identity - identity number, 0 to size()-1
+	   * @param SlapOptions options - options of the generated images
+	   * @return SlapResult re-encoded fingers 1 to 10 (unless disabled in the options) and slaps 13, 14 and 15
+	   *
+	   **/
+	public SlapResult generate(long identity, SlapOptions options) {
+		String id = getId(identity);
+		BufferedImage[] fingers = fingers(identity);
+		byte[][] slaps = SlapGen.encodeSlaps(fingers, options.variant(id), options);
+		byte[][] reEncoded = new byte[TenPrint.FINGER_COUNT][];
+		if(options.isReEncodeFingers()) {
+			for(int i = 0; i < reEncoded.length; i++) {
+				reEncoded[i] = SlapGen.encode(fingers[i], options);
+			}
+		}
+		return new SlapResult(id, reEncoded, slaps[0], slaps[1], slaps[2]);
+	}
+
+	// Feistel network over 2 * halfBits bits, cycle walking until the result is inside <0,size)
+	private long permute(long identity) {
+		long value = identity;
+		do {
+			long left = value >>> halfBits;
+			long right = value & halfMask;
+			for(int i = 0; i < ROUNDS; i++) {
+				long next = left ^ (round(right, keys[i]) & halfMask);
+				left = right;
+				right = next;
+			}
+			value = (left << halfBits) | right;
+		} while(value >= size);
+		return value;
+	}
+
+	private static long round(long value, long key) {
+		long z = value + key;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			usage();
+		}
+		long count = 0;
+		long first = 0;
+		long seed = 0;
+		String prefix = "syn";
+		int workers = Runtime.getRuntime().availableProcessors();
+		Shard shard = null;
+		boolean fingers = false;
+		SlapOptions.Builder options = new SlapOptions.Builder();
+		for(int i = 2; i < args.length; i++) {
+			switch(args[i]) {
+			case "--count":
+				count = Long.parseLong(value(args, ++i));
+				break;
+			case "--first":
+				first = Long.parseLong(value(args, ++i));
+				break;
+			case "--seed":
+				seed = Long.parseLong(value(args, ++i));
+				break;
+			case "--prefix":
+				prefix = value(args, ++i);
+				break;
+			case "--workers":
+				workers = Integer.parseInt(value(args, ++i));
+				break;
+			case "--shard":
+				shard = Shard.parse(value(args, ++i));
+				break;
+			case "--fingers":
+				fingers = true;
+				break;
+			case "--bitrate":
+				options.bitrate(Float.parseFloat(value(args, ++i)));
+				break;
+			case "--ppi":
+				options.ppi(Integer.parseInt(value(args, ++i)));
+				break;
+			default:
+				usage();
+			}
+		}
+		if(count <= 0 || first < 0) {
+			usage();
+		}
+		long start = System.nanoTime();
+		SyntheticIdentities identities = fromManifest(Paths.get(args[0]), seed, prefix, workers);
+		StringBuilder pools = new StringBuilder();
+		for(int position = 1; position <= TenPrint.FINGER_COUNT; position++) {
+			pools.append(position == 1 ? "" : " ").append(identities.getPoolSize(position));
+		}
+		System.out.println(String.format("Pools      : %s fingers decoded in %.2fs, %d distinct identities",
+				pools, (System.nanoTime() - start) / 1e9, identities.size()));
+		if(first + count > identities.size()) {
+			System.out.println("**** Only " + identities.size() + " distinct identities in the pools");
+			System.exit(1);
+		}
+
+		start = System.nanoTime();
+		long written = 0;
+		SlapOptions slapOptions = options.reEncodeFingers(fingers).build();
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		ArrayDeque<CompletableFuture<SlapResult>> inFlight = new ArrayDeque<>();
+		try (SlapContainer.Writer writer = SlapContainer.create(Paths.get(args[1]))) {
+			long next = first;
+			while(next < first + count || !inFlight.isEmpty()) {
+				while(next < first + count && inFlight.size() < workers * 4) {
+					long identity = next++;
+					if(shard == null || shard.contains(identity)) {
+						inFlight.addLast(CompletableFuture.supplyAsync(() -> identities.generate(identity, slapOptions), pool));
+					}
+				}
+				if(!inFlight.isEmpty()) {
+					writer.append(SlapGen.join(inFlight.removeFirst()));
+					written++;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		System.out.println(String.format("Identities : %d written to %s in %.2fs", written, args[1], (System.nanoTime() - start) / 1e9));
+	}
+
+	private static String value(String[] args, int i) {
+		if(i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SyntheticIdentities <manifest> <container> --count n [--first k] [--seed s] [--prefix p]");
+		System.out.println("                            [--workers n] [--shard i/N] [--fingers] [--bitrate f] [--ppi n]");
+		System.exit(2);
+	}
+}
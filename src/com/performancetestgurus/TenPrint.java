@@ -0,0 +1,56 @@
+package com.performancetestgurus;
+
+/**
+ * A tenprint record - the ten individual fingers of one identity in wsq format
+ * 
+ * Finger positions follow the NIST finger position codes used throughout SlapGen:
+ * 1 Right Thumb, 2 Right Index, 3 Right Middle, 4 Right Ring, 5 Right Little,
+ * 6 Left Thumb, 7 Left Index, 8 Left Middle, 9 Left Ring, 10 Left Little
+ * 
+ * Missing fingers are null.
+ * 
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ * 
+**/
+public final class TenPrint {
+
+	public static final int FINGER_COUNT = 10;
+
+	private final String id;
+	private final byte[][] fingers;
+
+	   /**
+	   * TenPrint - Creates a tenprint record
+	   * 
+	   * @param String id - identity id
+	   * @param byte[][] fingers - fingers 1 to 10 in wsq format as byte arrays (index 0 is finger 1) - null for missing fingers
+	   * 
+	   **/
+	public TenPrint(String id, byte[][] fingers) {
+		if(fingers.length != FINGER_COUNT) {
+			throw new IllegalArgumentException("A tenprint has " + FINGER_COUNT + " fingers, got " + fingers.length);
+		}
+		this.id = id;
+		this.fingers = fingers.clone();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	   /**
+	   * getFinger - Returns a finger by its position
+	   * 
+	   * @param int position - finger position 1 to 10
+	   * @return byte[] finger in wsq format as byte array or null if the finger is missing
+	   * 
+	   **/
+	public byte[] getFinger(int position) {
+		if(position < 1 || position > FINGER_COUNT) {
+			throw new IllegalArgumentException("Finger position must be 1 to " + FINGER_COUNT + " : " + position);
+		}
+		return fingers[position - 1];
+	}
+}
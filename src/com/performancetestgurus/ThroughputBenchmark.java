@@ -0,0 +1,385 @@
+package com.performancetestgurus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.time.Instant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end throughput benchmark - sustained records per second of the full
+ * read, decode, compose, encode and write path at several thread counts and heap sizes
+ *
+ * Usage: ThroughputBenchmark manifest [--threads 1,2,4] [--heaps 512m,2g] [--duration s] [--warmup s]
+ *                            [--fingers] [--output results.json] [--jvm-args "args"]
+ *        ThroughputBenchmark compare baseline.json candidate.json
+ *
+ * Every heap size / thread count pair runs in its own child JVM (-Xmx<heap>), so heap size,
+ * JIT and GC state of one run do not leak into the next. Each worker thread loops over the
+ * manifest: reads the fingers of an identity, generates its slaps (and with --fingers the
+ * re-encoded fingers) with SlapGen.generate and writes them to a temporary directory. After
+ * --warmup seconds (default 10) the run is measured for --duration seconds (default 30).
+ *
+ * Per run the results hold throughput (records and images per second), record latency
+ * (p50, p99, p99.9, max), GC pause time and count of the measured period, and the bytes
+ * allocated by the worker threads for the measured records (per second and per record). --output writes them as JSON, one run per line, which
+ * ThroughputBenchmark compare reads to show the change between two builds.
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class ThroughputBenchmark {
+
+	private static final String RESULT = "RESULT ";
+
+	private final List<Manifest.Record> records;
+	private final SlapOptions options;
+	private final Path outputDirectory;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder images = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder allocated = new LongAdder();
+	private volatile boolean measuring;
+	private volatile boolean running = true;
+
+	private ThroughputBenchmark(List<Manifest.Record> records, SlapOptions options, Path outputDirectory) {
+		this.records = records;
+		this.options = options;
+		this.outputDirectory = outputDirectory;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 3 && args[0].equals("compare")) {
+			compare(Paths.get(args[1]), Paths.get(args[2]));
+			return;
+		}
+		if(args.length == 0) {
+			usage();
+		}
+		Path manifest = Paths.get(args[0]);
+		String threads = "1," + Runtime.getRuntime().availableProcessors();
+		String heaps = "";
+		double duration = 30;
+		double warmup = 10;
+		boolean fingers = false;
+		boolean child = false;
+		Path output = null;
+		String jvmArgs = "";
+		for(int i = 1; i < args.length; i++) {
+			switch(args[i]) {
+			case "--threads":
+				threads = value(args, ++i);
+				break;
+			case "--heaps":
+				heaps = value(args, ++i);
+				break;
+			case "--duration":
+				duration = Double.parseDouble(value(args, ++i));
+				break;
+			case "--warmup":
+				warmup = Double.parseDouble(value(args, ++i));
+				break;
+			case "--fingers":
+				fingers = true;
+				break;
+			case "--output":
+				output = Paths.get(value(args, ++i));
+				break;
+			case "--jvm-args":
+				jvmArgs = value(args, ++i);
+				break;
+			case "--child":
+				child = true;
+				break;
+			default:
+				usage();
+			}
+		}
+		if(child) {
+			System.out.println(RESULT + runChild(manifest, Integer.parseInt(threads), duration, warmup, fingers));
+			return;
+		}
+		List<String> results = new ArrayList<>();
+		for(String heap : heaps.isEmpty() ? new String[] {""} : heaps.split(",")) {
+			for(String count : threads.split(",")) {
+				List<String> command = new ArrayList<>();
+				command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+				if(!heap.isEmpty()) {
+					command.add("-Xmx" + heap.trim());
+					command.add("-Xms" + heap.trim());
+				}
+				if(!jvmArgs.trim().isEmpty()) {
+					command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+				}
+				command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), ThroughputBenchmark.class.getName(),
+						manifest.toString(), "--child", "--threads", count.trim(),
+						"--duration", String.valueOf(duration), "--warmup", String.valueOf(warmup)));
+				if(fingers) {
+					command.add("--fingers");
+				}
+				String result = runProcess(command, heap.trim(), Integer.parseInt(count.trim()));
+				System.out.println(String.format("heap=%-6s threads=%-3s %s", heap.isEmpty() ? "default" : heap.trim(), count.trim(), describe(result)));
+				results.add(result);
+			}
+		}
+		if(output != null) {
+			StringBuilder json = new StringBuilder("{\n");
+			json.append("\"timestamp\":").append(jsonString(Instant.now().toString())).append(",\n");
+			json.append("\"java\":").append(jsonString(System.getProperty("java.vm.name") + " " + System.getProperty("java.version"))).append(",\n");
+			json.append("\"processors\":").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+			json.append("\"manifest\":").append(jsonString(manifest.toString())).append(",\n");
+			json.append("\"durationSeconds\":").append(duration).append(",\n");
+			json.append("\"results\":[\n").append(String.join(",\n", results)).append("\n]\n}\n");
+			Files.write(output, json.toString().getBytes(StandardCharsets.UTF_8));
+			System.out.println("Results written to " + output);
+		}
+	}
+
+	private static String value(String[] args, int i) {
+		if(i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ThroughputBenchmark <manifest> [--threads 1,2,4] [--heaps 512m,2g] [--duration s] [--warmup s]");
+		System.out.println("                            [--fingers] [--output results.json] [--jvm-args \"args\"]");
+		System.out.println("        ThroughputBenchmark compare <baseline.json> <candidate.json>");
+		System.exit(2);
+	}
+
+	private static String runProcess(List<String> command, String heap, int threads) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String result = null;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(RESULT)) {
+					result = line.substring(RESULT.length());
+				} else if(line.startsWith("****") || line.contains("OutOfMemoryError")) {
+					System.out.println(line);
+				}
+			}
+		}
+		int exit = process.waitFor();
+		if(result == null) {
+			return String.format("{\"heap\":%s,\"threads\":%d,\"error\":\"child JVM exited with %d\"}", jsonString(heap), threads, exit);
+		}
+		return result.replaceFirst("^\\{", "{\"heap\":" + jsonString(heap) + ",");
+	}
+
+	private static String runChild(Path manifest, int threads, double duration, double warmup, boolean fingers) throws Exception {
+		List<Manifest.Record> records;
+		try (Stream<Manifest.Record> stream = Manifest.records(manifest)) {
+			records = stream.collect(Collectors.toList());
+		}
+		if(records.isEmpty()) {
+			throw new IllegalArgumentException("Manifest has no identities : " + manifest);
+		}
+		Path directory = Files.createTempDirectory("slapbench");
+		try {
+			ThroughputBenchmark benchmark = new ThroughputBenchmark(records, new SlapOptions.Builder().reEncodeFingers(fingers).build(), directory);
+			return benchmark.run(threads, duration, warmup);
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for(Path file : (Iterable<Path>) files::iterator) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	private String run(int threads, double duration, double warmup) throws InterruptedException {
+		List<Thread> workers = new ArrayList<>();
+		for(int i = 0; i < threads; i++) {
+			int worker = i;
+			Thread thread = new Thread(() -> work(worker, threads), "slapbench-" + i);
+			thread.start();
+			workers.add(thread);
+		}
+		Thread.sleep((long) (warmup * 1000));
+		long[] gcBefore = gcPauses();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep((long) (duration * 1000));
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		long[] gcAfter = gcPauses();
+		running = false;
+		for(Thread thread : workers) {
+			thread.join();
+		}
+		double seconds = elapsed / 1e9;
+		return String.format(Locale.ROOT, "{\"threads\":%d,\"records\":%d,\"failed\":%d,\"images\":%d,\"seconds\":%.3f,"
+				+ "\"recordsPerSecond\":%.3f,\"imagesPerSecond\":%.3f,"
+				+ "\"latencyMs\":{\"mean\":%.3f,\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f},"
+				+ "\"gcPauseMs\":%d,\"gcCount\":%d,\"allocatedBytes\":%d,\"allocationMBPerSecond\":%.3f,\"allocatedBytesPerRecord\":%d}",
+				threads, completed.sum(), failed.sum(), images.sum(), seconds,
+				completed.sum() / seconds, images.sum() / seconds,
+				millis(latency.getMeanNanos()), millis(latency.getPercentileNanos(50)), millis(latency.getPercentileNanos(99)),
+				millis(latency.getPercentileNanos(99.9)), millis(latency.getMaxNanos()),
+				gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], allocated.sum(), allocated.sum() / seconds / (1024 * 1024),
+				completed.sum() == 0 ? 0 : allocated.sum() / completed.sum());
+	}
+
+	private void work(int worker, int workers) {
+		int next = worker;
+		while(running) {
+			boolean counted = measuring;
+			long start = System.nanoTime();
+			long allocationStart = allocatedBytes();
+			Manifest.Record record = records.get(next % records.size());
+			next += workers;
+			try {
+				SlapResult result = SlapGen.generate(record.readTenPrint(), options);
+				int written = write(worker, result);
+				if(counted && measuring) {
+					latency.recordSince(start);
+					completed.increment();
+					images.add(written);
+					allocated.add(allocatedBytes() - allocationStart);
+				}
+			} catch (IOException | RuntimeException e) {
+				if(counted) {
+					failed.increment();
+				}
+				if(failed.sum() <= 10) {
+					System.out.println("**** " + record.getId() + " failed : " + e);
+				}
+			}
+		}
+	}
+
+	private int write(int worker, SlapResult result) throws IOException {
+		int written = 0;
+		for(int position : new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, SlapResult.RIGHT_SLAP, SlapResult.LEFT_SLAP, SlapResult.THUMB_SLAP}) {
+			byte[] wsq = result.getFinger(position);
+			if(wsq != null) {
+				Files.write(outputDirectory.resolve(String.format("w%d_%02d.wsq", worker, position)), wsq);
+				written++;
+			}
+		}
+		return written;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return Math.max(0, ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()));
+		}
+		return 0;
+	}
+
+	// collection time and count of the stop-the-world collectors, concurrent cycles are not pauses
+	private static long[] gcPauses() {
+		long time = 0;
+		long count = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			String name = collector.getName();
+			if(name.contains("Concurrent") || name.contains("Cycles")) {
+				continue;
+			}
+			time += Math.max(0, collector.getCollectionTime());
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return new long[] {time, count};
+	}
+
+	private static double millis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static String jsonString(String value) {
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	private static String describe(String result) {
+		Map<String, String> fields = fields(result);
+		if(fields.containsKey("error")) {
+			return "**** " + fields.get("error");
+		}
+		return String.format("%s records/s, %s images/s, p50=%sms p99=%sms p99.9=%sms, gc pauses %sms (%s), alloc %sMB/s",
+				fields.get("recordsPerSecond"), fields.get("imagesPerSecond"), fields.get("p50"), fields.get("p99"),
+				fields.get("p999"), fields.get("gcPauseMs"), fields.get("gcCount"), fields.get("allocationMBPerSecond"));
+	}
+
+	private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(\"(?:[^\"\\\\]|\\\\.)*\"|[-\\d.Ee]+)");
+
+	// flat view of one result line - names are unique within a result
+	private static Map<String, String> fields(String result) {
+		Map<String, String> fields = new HashMap<>();
+		Matcher matcher = FIELD.matcher(result);
+		while(matcher.find()) {
+			String value = matcher.group(2);
+			fields.put(matcher.group(1), value.startsWith("\"") ? value.substring(1, value.length() - 1) : value);
+		}
+		return fields;
+	}
+
+	private static void compare(Path baseline, Path candidate) throws IOException {
+		Map<String, Map<String, String>> before = results(baseline);
+		Map<String, Map<String, String>> after = results(candidate);
+		System.out.println(String.format("%-24s %12s %12s %8s %10s %10s %8s %10s %10s", "run",
+				"base rec/s", "cand rec/s", "change", "base p99", "cand p99", "change", "base MB/s", "cand MB/s"));
+		for(Map.Entry<String, Map<String, String>> entry : after.entrySet()) {
+			Map<String, String> old = before.get(entry.getKey());
+			Map<String, String> current = entry.getValue();
+			if(old == null || old.containsKey("error") || current.containsKey("error")) {
+				System.out.println(String.format("%-24s %s", entry.getKey(), old == null ? "not in baseline" : "failed"));
+				continue;
+			}
+			double oldRate = Double.parseDouble(old.get("recordsPerSecond"));
+			double newRate = Double.parseDouble(current.get("recordsPerSecond"));
+			double oldP99 = Double.parseDouble(old.get("p99"));
+			double newP99 = Double.parseDouble(current.get("p99"));
+			System.out.println(String.format(Locale.ROOT, "%-24s %12.2f %12.2f %+7.1f%% %10.2f %10.2f %+7.1f%% %10.1f %10.1f", entry.getKey(),
+					oldRate, newRate, change(oldRate, newRate), oldP99, newP99, change(oldP99, newP99),
+					Double.parseDouble(old.get("allocationMBPerSecond")), Double.parseDouble(current.get("allocationMBPerSecond"))));
+		}
+	}
+
+	private static double change(double before, double after) {
+		return before == 0 ? 0 : (after - before) * 100 / before;
+	}
+
+	private static Map<String, Map<String, String>> results(Path file) throws IOException {
+		Map<String, Map<String, String>> results = new LinkedHashMap<>();
+		for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if(line.contains("\"threads\"")) {
+				Map<String, String> fields = fields(line);
+				String heap = fields.getOrDefault("heap", "");
+				results.put("heap=" + (heap.isEmpty() ? "default" : heap) + " threads=" + fields.get("threads"), fields);
+			}
+		}
+		return results;
+	}
+}
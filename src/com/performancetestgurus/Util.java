@@ -3,6 +3,13 @@ package com.performancetestgurus;
 //import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.image.BufferedImage;
@@ -34,6 +41,8 @@ import cz.muni.fi.lazon.wsq.Encoder;
 **/
 public class Util {
 
+	private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
 	   /**
 	   * Show Image - Displays an image on the screen - Used for reviewing slaps during development
 	   * @param BufferedImage image Image to display
@@ -81,18 +90,12 @@ public class Util {
 	
 	protected static byte[] convert(BufferedImage image) {
 		byte[] returnBytes = null;
-		System.out.println(image.getColorModel());
-        WritableRaster raster = image.getRaster();
-        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
-        byte[] databuffer = buffer.getData();
         //Bitmap bitmap = new   Bitmap(databuffer, image.getWidth(),  image.getHeight(), 500, 8, 1); 
         
-        Encoder encoder = new Encoder.Builder(image.getWidth(), image.getHeight()).build();
-        
         //ByteArrayOutputStream byteBuffer2 = new ByteArrayOutputStream();
         try {
 			//WSQEncoder.encode(byteBuffer2, bitmap, 2.25f, "");
-        	returnBytes = encoder.encode(databuffer);
+        	returnBytes = encode(image, SlapOptions.DEFAULT);
         	} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -100,4 +103,102 @@ public class Util {
        // return byteBuffer2.toByteArray();
         return returnBytes;
 	}	
+
+	   /**
+	   * Encode - encodes a BufferedImage as WSQ using the given options
+	   * 
+	   * Reserves the memory of the encode from the memory budget first, if one is set (see SlapGen.setMemoryBudget)
+	   * The encode is recorded in SlapGenMetrics.
+	   * 
+	   * @param BufferedImage image - Grey Scale (TYPE_BYTE_GRAY) image to be encoded
+	   * @param SlapOptions options - bitrate, ppi and metadata
+	   * @return byte[] image in wsq format as byte array
+	   * 
+	   */
+	
+	static byte[] encode(BufferedImage image, SlapOptions options) throws IOException {
+        WritableRaster raster = image.getRaster();
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] databuffer = buffer.getData();
+        Encoder encoder = options.encoder(image.getWidth(), image.getHeight());
+        MemoryBudget budget = SlapGen.getMemoryBudget();
+        SlapGenMetrics metrics = SlapGenMetrics.get();
+        metrics.encodeStarted();
+        try {
+        	MemoryBudget.Reservation reservation = budget == null ? null : budget.reserve(image.getWidth(), image.getHeight());
+        	try {
+        		long start = System.nanoTime();
+        		ResourceAccounting.Span span = ResourceAccounting.start();
+        		byte[] wsq = encoder.encode(databuffer);
+        		metrics.encoded(start, wsq);
+        		ResourceAccounting.end(span, "encode");
+        		return wsq;
+        	} finally {
+        		if(reservation != null) {
+        			reservation.close();
+        		}
+        	}
+        } catch (IOException | RuntimeException e) {
+        	metrics.encodeFailed();
+        	throw e;
+        }
+	}	
+
+	   /**
+	   * newVirtualThreadPerTaskExecutor - creates an executor that runs each task on a new virtual thread
+	   * 
+	   * Virtual threads need JDK 21 or later - the executor is looked up at runtime so 
+	   * SlapGen still builds and runs on older JDKs.
+	   * 
+	   * @return ExecutorService virtual thread per task executor
+	   * @throws UnsupportedOperationException if the JDK has no virtual threads
+	   * 
+	   */
+	
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or later, running on " 
+					+ System.getProperty("java.version"), e);
+		}
+	}	
+	
+	   /**
+	   * forceDirectory - syncs a directory to disk, so the entries of files created in it survive a crash
+	   * 
+	   * Windows cannot open a directory as a channel and does not need it (NTFS journals the metadata),
+	   * so this does nothing there.
+	   * 
+	   * @param Path directory - directory to sync
+	   * 
+	   */
+	
+	static void forceDirectory(Path directory) throws IOException {
+		if(WINDOWS) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+	
+	   /**
+	   * mix64 - SplitMix64 finalizer, spreads every input bit over all output bits
+	   * 
+	   * Seeds derived as seed * constant + index are close for consecutive seeds and indexes, and the
+	   * generators seeded with them start correlated. Mixing each part in turn avoids that:
+	   * mix64(mix64(seed) + index).
+	   * 
+	   * @param long z - value to mix
+	   * @return long mixed value, a bijection of z
+	   * 
+	   */
+	
+	static long mix64(long z) {
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
 }
@@ -0,0 +1,341 @@
+package com.performancetestgurus;
+
+import java.awt.image.BufferedImage;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cz.muni.fi.lazon.wsq.MarkerScanner;
+
+/**
+ * Reader for archives of concatenated WSQ records - a single large blob instead of many small files
+ *
+ * The blob is memory mapped and record boundaries are found by walking the WSQ markers
+ * (SOI ... EOI, see MarkerScanner). Bytes between records are skipped. Records are handed out
+ * as read-only ByteBuffer slices of the mapping, decodeFinger decodes them without a copy.
+ *
+ * The first open scans the blob in parallel chunks and writes a sidecar index (blob.idx)
+ * holding the offset and length of every record. Later opens of the unchanged blob read
+ * the index instead of scanning.
+ *
+ * Command line tool: WsqArchive blob [--threads n] - builds the index and prints the record count
+ *
+ * @author <a href="mailto:renard.vardy@performancetestgurus.com">Renard Vardy</a>
+ * @version 0.1
+ * Copyright (C) 2019 Renard Vardy, www.performancetestgururus.com/copyright
+ *
+**/
+public final class WsqArchive implements Closeable {
+
+	private static final long INDEX_MAGIC = 0x534c4150494458L;	// "SLAPIDX"
+	private static final int WINDOW_SHIFT = 30;
+	private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+	/** Largest record the reader supports - windows overlap by this much so every record fits in one window */
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final long MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final Path blob;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] windows;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	private WsqArchive(Path blob, FileChannel channel, MappedByteBuffer[] windows, long[] offsets, int[] lengths) {
+		this.blob = blob;
+		this.channel = channel;
+		this.windows = windows;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	   /**
+	   * open - Maps an archive with one scan thread per available processor
+	   *
+	   * @param Path blob - archive of concatenated WSQ records
+	   * @return WsqArchive indexed archive
+	   *
+	   **/
+	public static WsqArchive open(Path blob) throws IOException {
+		return open(blob, Runtime.getRuntime().availableProcessors());
+	}
+
+	   /**
+	   * open - Maps an archive and reads or builds its index
+	   *
+	   * @param Path blob - archive of concatenated WSQ records
+	   * @param int threads - threads used when the blob has to be scanned
+	   * @return WsqArchive indexed archive
+	   *
+	   **/
+	public static WsqArchive open(Path blob, int threads) throws IOException {
+		FileChannel channel = FileChannel.open(blob, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+			for(int i = 0; i < windows.length; i++) {
+				long start = (long) i << WINDOW_SHIFT;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE + MAX_RECORD_SIZE, size - start));
+			}
+			List<long[]> records = readIndex(blob, size);
+			if(records == null) {
+				records = scan(windows, size, threads);
+				writeIndex(blob, size, records);
+			}
+			long[] offsets = new long[records.size()];
+			int[] lengths = new int[records.size()];
+			for(int i = 0; i < offsets.length; i++) {
+				offsets[i] = records.get(i)[0];
+				lengths[i] = (int) records.get(i)[1];
+			}
+			return new WsqArchive(blob, channel, windows, offsets, lengths);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public Path getPath() {
+		return blob;
+	}
+
+	   /**
+	   * size - Number of WSQ records in the archive
+	   *
+	   **/
+	public int size() {
+		return offsets.length;
+	}
+
+	public long offset(int record) {
+		return offsets[record];
+	}
+
+	public int length(int record) {
+		return lengths[record];
+	}
+
+	   /**
+	   * record - Returns a record without copying it
+	   *
+	   * @param int record - record number
+	   * @return ByteBuffer read-only slice of the mapped blob holding the record
+	   *
+	   **/
+	public ByteBuffer record(int record) {
+		long offset = offsets[record];
+		ByteBuffer window = windows[(int) (offset >>> WINDOW_SHIFT)].duplicate();
+		int position = (int) (offset & (WINDOW_SIZE - 1));
+		window.limit(position + lengths[record]).position(position);
+		return window.slice().asReadOnlyBuffer();
+	}
+
+	   /**
+	   * toByteArray - Copies a record, e.g. to build a TenPrint
+	   *
+	   * @param int record - record number
+	   * @return byte[] record in wsq format as byte array
+	   *
+	   **/
+	public byte[] toByteArray(int record) {
+		byte[] bytes = new byte[lengths[record]];
+		record(record).get(bytes);
+		return bytes;
+	}
+
+	   /**
+	   * decode - Decodes a record straight from the mapping
+	   *
+	   * @param int record - record number
+	   * @return BufferedImage Grey Scale (TYPE_BYTE_GRAY) image
+	   *
+	   **/
+	public BufferedImage decode(int record) throws IOException {
+		return SlapGen.decodeFinger(record(record));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static Path indexPath(Path blob) {
+		return blob.resolveSibling(blob.getFileName() + ".idx");
+	}
+
+	private static List<long[]> readIndex(Path blob, long size) throws IOException {
+		Path index = indexPath(blob);
+		if(!Files.exists(index)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+			if(in.readLong() != INDEX_MAGIC || in.readLong() != size
+					|| in.readLong() != Files.getLastModifiedTime(blob).toMillis()) {
+				return null;
+			}
+			int count = in.readInt();
+			List<long[]> records = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				records.add(new long[] {in.readLong(), in.readInt()});
+			}
+			return records;
+		} catch (IOException e) {
+			return null;	// unreadable or truncated index - scan again
+		}
+	}
+
+	private static void writeIndex(Path blob, long size, List<long[]> records) throws IOException {
+		Path index = indexPath(blob);
+		Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeLong(INDEX_MAGIC);
+			out.writeLong(size);
+			out.writeLong(Files.getLastModifiedTime(blob).toMillis());
+			out.writeInt(records.size());
+			for(long[] record : records) {
+				out.writeLong(record[0]);
+				out.writeInt((int) record[1]);
+			}
+		}
+		Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	   /**
+	   * Scans the blob in chunks that never cross a window boundary. Every chunk collects the records
+	   * starting in it, plus the start of the first record after it. A chunk whose first record does
+	   * not start where the previous chunk expects it (a marker look-alike inside a record) is scanned
+	   * again from the expected position.
+	   **/
+	private static List<long[]> scan(MappedByteBuffer[] windows, long size, int threads) throws IOException {
+		long chunkSize = MIN_CHUNK_SIZE;
+		while(chunkSize < WINDOW_SIZE && chunkSize * threads * 4 < size) {
+			chunkSize <<= 1;
+		}
+		int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Chunk>> futures = new ArrayList<>(chunks);
+			for(int i = 0; i < chunks; i++) {
+				long start = i * chunkSize;
+				long end = Math.min(size, start + chunkSize);
+				futures.add(pool.submit(() -> scanChunk(windows, size, start, end, -1)));
+			}
+			List<long[]> records = new ArrayList<>();
+			long expected = -1;
+			for(int i = 0; i < chunks; i++) {
+				Chunk chunk = futures.get(i).get();
+				if(i > 0 && chunk.first != expected) {
+					long start = i * chunkSize;
+					chunk = scanChunk(windows, size, start, Math.min(size, start + chunkSize), expected);
+				}
+				records.addAll(chunk.records);
+				expected = chunk.next;
+			}
+			return records;
+		} catch (Exception e) {
+			throw new IOException("Unable to scan " + size + " byte archive", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static final class Chunk {
+		final List<long[]> records = new ArrayList<>();
+		long first = -1;
+		long next = -1;
+	}
+
+	private static Chunk scanChunk(MappedByteBuffer[] windows, long size, long start, long end, long from) {
+		Chunk chunk = new Chunk();
+		int window = (int) (start >>> WINDOW_SHIFT);
+		long base = (long) window << WINDOW_SHIFT;
+		ByteBuffer buffer = windows[window];
+		int limit = (int) Math.min(buffer.capacity(), size - base);
+		int chunkEnd = (int) (end - base);
+		int position = (int) ((from >= 0 ? from : start) - base);
+		if(from >= 0 && from >= end) {
+			chunk.first = from;
+			chunk.next = from;
+			return chunk;
+		}
+		while(position >= 0 && position < chunkEnd) {
+			int soi = MarkerScanner.nextSoi(buffer, position, Math.min(limit, chunkEnd + 1));
+			if(soi < 0) {
+				break;
+			}
+			int recordEnd = MarkerScanner.recordEnd(buffer, soi, limit);
+			if(recordEnd < 0) {
+				position = soi + 1;
+				continue;
+			}
+			if(chunk.first < 0) {
+				chunk.first = base + soi;
+			}
+			chunk.records.add(new long[] {base + soi, recordEnd - soi});
+			position = recordEnd;
+		}
+		if(chunk.first < 0) {
+			chunk.first = end < size ? -2 : -1;
+		}
+		chunk.next = nextRecord(windows, size, base + Math.max(position, chunkEnd));
+		if(chunk.first == -2) {
+			chunk.first = chunk.next;	// no record starts in this chunk
+		}
+		return chunk;
+	}
+
+	   /**
+	   * Position of the first valid record at or after a position, or size if there is none
+	   **/
+	private static long nextRecord(MappedByteBuffer[] windows, long size, long from) {
+		long position = from;
+		while(position < size) {
+			int window = (int) (position >>> WINDOW_SHIFT);
+			long base = (long) window << WINDOW_SHIFT;
+			ByteBuffer buffer = windows[window];
+			int limit = (int) Math.min(buffer.capacity(), size - base);
+			int searchEnd = (int) Math.min(limit, WINDOW_SIZE + 1);
+			int soi = MarkerScanner.nextSoi(buffer, (int) (position - base), searchEnd);
+			if(soi < 0) {
+				position = base + Math.min(limit, WINDOW_SIZE);
+				continue;
+			}
+			if(MarkerScanner.recordEnd(buffer, soi, limit) >= 0) {
+				return base + soi;
+			}
+			position = base + soi + 1;
+		}
+		return size;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1 && !(args.length == 3 && args[1].equals("--threads"))) {
+			System.out.println("Usage : WsqArchive <blob> [--threads n]");
+			System.exit(2);
+		}
+		int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long start = System.nanoTime();
+		try (WsqArchive archive = open(Paths.get(args[0]), threads)) {
+			System.out.println(String.format("%d records indexed in %.2fs : %s",
+					archive.size(), (System.nanoTime() - start) / 1e9, indexPath(archive.getPath())));
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package cz.muni.fi.lazon.wsq;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a whole WSQ encode, the parent of its EncodeStageEvents.
+ */
+@Name("cz.muni.fi.lazon.wsq.Encode")
+@Label("WSQ Encode")
+@Category({"SlapGen", "WSQ Encoder"})
+@Description("Encode of one image to WSQ")
+@StackTrace(false)
+final class EncodeEvent extends Event {
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Bit Rate")
+    float bitRate;
+
+    @Label("Output Bytes")
+    @DataAmount
+    long outputBytes;
+}
@@ -0,0 +1,120 @@
+package cz.muni.fi.lazon.wsq;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one stage of a WSQ encode.
+ *
+ * Stages: convert, decompose, variance, quantize, tables, block1, block2, block3.
+ * The block stages include building the Huffman table of the block and the entropy coding.
+ * A disabled event costs one small allocation per stage and no clock reads.
+ *
+ * The stage boundaries are also passed on to the stage listener of Encoder, if one is set.
+ */
+@Name("cz.muni.fi.lazon.wsq.EncodeStage")
+@Label("WSQ Encode Stage")
+@Category({"SlapGen", "WSQ Encoder"})
+@Description("One stage of a WSQ encode")
+@StackTrace(false)
+final class EncodeStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Bit Rate")
+    float bitRate;
+
+    @Label("Output Bytes")
+    @Description("Bytes of WSQ written when the stage ended, -1 if unknown")
+    @DataAmount
+    long outputBytes;
+
+    /**
+     * Starts the first stage of an encode.
+     *
+     * @param stage   stage name
+     * @param width   width of the image being encoded
+     * @param height  height of the image being encoded
+     * @param bitRate requested bit rate
+     * @return started event
+     */
+    static EncodeStageEvent begin(final String stage, final int width, final int height, final float bitRate) {
+        final Encoder.StageListener listener = Encoder.getStageListener();
+        if (listener != null) {
+            listener.encodeStarted(width, height);
+            listener.stageStarted(stage);
+        }
+        final EncodeStageEvent event = new EncodeStageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.width = width;
+            event.height = height;
+            event.bitRate = bitRate;
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * Ends this stage and starts the next one.
+     *
+     * @param next       name of the next stage
+     * @param dataOutput encoder output, used for the byte count
+     * @return started event of the next stage
+     */
+    EncodeStageEvent next(final String next, final DataOutput dataOutput) {
+        commitStage(dataOutput);
+        final Encoder.StageListener listener = Encoder.getStageListener();
+        if (listener != null) {
+            listener.stageStarted(next);
+        }
+        final EncodeStageEvent event = new EncodeStageEvent();
+        if (event.isEnabled()) {
+            event.stage = next;
+            event.width = width;
+            event.height = height;
+            event.bitRate = bitRate;
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * Ends this stage, the last one of the encode.
+     *
+     * @param dataOutput encoder output, used for the byte count
+     */
+    void end(final DataOutput dataOutput) {
+        commitStage(dataOutput);
+        final Encoder.StageListener listener = Encoder.getStageListener();
+        if (listener != null) {
+            listener.encodeEnded();
+        }
+    }
+
+    private void commitStage(final DataOutput dataOutput) {
+        if (shouldCommit()) {
+            outputBytes = bytesWritten(dataOutput);
+            commit();
+        }
+    }
+
+    static long bytesWritten(final DataOutput dataOutput) {
+        return dataOutput instanceof DataOutputStream ? ((DataOutputStream) dataOutput).size() : -1;
+    }
+}
@@ -17,6 +17,48 @@ public class Encoder {
     private final boolean includeMetadata;
     private final String comment;
 
+    private static volatile StageListener stageListener;
+
+    /**
+     * Observer of the stages of every encode, e.g. for per stage CPU time or allocation accounting.
+     * Called on the encoding thread, so it can use thread local state.
+     */
+    public interface StageListener {
+
+        /**
+         * An encode starts, its first stage follows.
+         *
+         * @param width image width
+         * @param height image height
+         */
+        void encodeStarted(int width, int height);
+
+        /**
+         * A stage starts, the previous stage of the encode (if any) has ended.
+         *
+         * @param stage stage name - convert, decompose, variance, quantize, tables, block1, block2, block3
+         */
+        void stageStarted(String stage);
+
+        /**
+         * The last stage of the encode has ended. Not called if the encode fails.
+         */
+        void encodeEnded();
+    }
+
+    /**
+     * Installs the listener notified of the stages of all encodes.
+     *
+     * @param listener listener to use, null for none
+     */
+    public static void setStageListener(final StageListener listener) {
+        stageListener = listener;
+    }
+
+    static StageListener getStageListener() {
+        return stageListener;
+    }
+
     private Encoder(Builder builder) {
         width = builder.width;
         height = builder.height;
@@ -53,7 +95,7 @@ public class Encoder {
          * @param quality image quality from interval <0.75,2.2>
          */
         public Builder quality(float quality) {
-            if(quality>2.2 || quality<0.75) {
+            if(quality>2.2f || quality<0.75f) {
                 throw new IllegalArgumentException("Quality must be greater in <0.75,2.2>");
             }
             this.quality = quality;
@@ -49,9 +49,14 @@ final class EncoderImpl {
         }
         Quantization quantVals = new Quantization();
 
+        final EncodeEvent encodeEvent = new EncodeEvent();
+        encodeEvent.begin();
+        EncodeStageEvent stage = EncodeStageEvent.begin("convert", bitmap.getWidth(), bitmap.getHeight(), bitRate);
+
         /* Convert image pixels to floating point. */
         fdata = convImg2FltRet(bitmap.getPixels(), mShift, rScale);
         log.info("Input image pixels converted to floating point.");
+        stage = stage.next("decompose", dataOutput);
 
         /* Build WSQ decomposition trees */
         DataStructures.buildWSQTrees(wTree, qTree, bitmap.getWidth(), bitmap.getHeight());
@@ -60,6 +65,7 @@ final class EncoderImpl {
         /* WSQ decompose the image */
         wsqDecompose(fdata, bitmap.getWidth(), bitmap.getHeight(), wTree, HI_FILT_NOT_EVEN_8X8_1, LO_FILT_NOT_EVEN_8X8_1);
         log.info("WSQ decomposition of image finished.");
+        stage = stage.next("variance", dataOutput);
 
         /* Assign specified r-bitrate into quantization structure. */
         quantVals.r = bitRate;
@@ -67,6 +73,7 @@ final class EncoderImpl {
         /* Compute subband variances. */
         variance(quantVals, qTree, fdata, bitmap.getWidth());
         log.info("Subband variances computed");
+        stage = stage.next("quantize", dataOutput);
 
         /* Quantize the floating point pixmap. */
         qdata = quantize(qsize, quantVals, qTree, fdata, bitmap.getWidth(), bitmap.getHeight());
@@ -78,6 +85,7 @@ final class EncoderImpl {
         if (qsize.value != qsize1.value + qsize2.value + qsize3.value) {
             throw new IllegalStateException("ERROR : wsq_encode_1 : problem w/quantization block sizes");
         }
+        stage = stage.next("tables", dataOutput);
 
         /* Add a Start Of Image (SOI) marker to the WSQ buffer. */
         dataOutput.writeShort(SOI_WSQ);
@@ -95,6 +103,7 @@ final class EncoderImpl {
         /* Store a frame header to the WSQ buffer. */
         putcFrameHeaderWsq(dataOutput, bitmap.getWidth(), bitmap.getHeight(), mShift.value, rScale.value);
         log.info("SOI, tables, and frame header writte.");
+        stage = stage.next("block1", dataOutput);
 
         /*----------------*/
         /* ENCODE Block 1 */
@@ -112,6 +121,7 @@ final class EncoderImpl {
         /* Compress Block 1 data. */
         compressBlock(dataOutput, qdata, 0, qsize1.value, MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable);
         log.info("Block 1 compressed and written.");
+        stage = stage.next("block2", dataOutput);
 
         /*----------------*/
         /* ENCODE Block 2 */
@@ -129,6 +139,7 @@ final class EncoderImpl {
         /* Compress Block 2 data. */
         compressBlock(dataOutput, qdata, qsize1.value, qsize2.value, MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable);
         log.info("Block 2 compressed and written.");
+        stage = stage.next("block3", dataOutput);
 
         /*----------------*/
         /* ENCODE Block 3 */
@@ -142,6 +153,15 @@ final class EncoderImpl {
 
         /* Add a End Of Image (EOI) marker to the WSQ buffer. */
         dataOutput.writeShort(EOI_WSQ);
+        stage.end(dataOutput);
+
+        if (encodeEvent.shouldCommit()) {
+            encodeEvent.width = bitmap.getWidth();
+            encodeEvent.height = bitmap.getHeight();
+            encodeEvent.bitRate = bitRate;
+            encodeEvent.outputBytes = EncodeStageEvent.bytesWritten(dataOutput);
+            encodeEvent.commit();
+        }
     }
 
     /**
@@ -0,0 +1,106 @@
+package cz.muni.fi.lazon.wsq;
+
+import java.nio.ByteBuffer;
+
+import static cz.muni.fi.lazon.wsq.Constants.*;
+
+/**
+ * Finds WSQ records in a buffer by walking their marker segments.
+ *
+ * A record starts with an SOI marker and ends with an EOI marker. Table and frame
+ * segments carry their own length, entropy coded block data runs until the next
+ * marker (a 0xff byte not followed by a stuffed 0x00).
+ */
+public final class MarkerScanner {
+
+    private MarkerScanner() {}
+
+    /**
+     * Finds the next SOI marker.
+     *
+     * @param buffer buffer to scan (absolute positions, buffer position is ignored)
+     * @param from   first position to look at
+     * @param limit  position after the last byte to look at
+     * @return position of the SOI marker or -1 if there is none
+     */
+    public static int nextSoi(final ByteBuffer buffer, final int from, final int limit) {
+        for (int i = from; i + 1 < limit; i++) {
+            if ((buffer.get(i) & 0xff) == (SOI_WSQ >> 8) && (buffer.get(i + 1) & 0xff) == (SOI_WSQ & 0xff)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walks the segments of a record.
+     *
+     * @param buffer buffer to scan (absolute positions, buffer position is ignored)
+     * @param soi    position of the SOI marker of the record
+     * @param limit  position after the last byte the record may use
+     * @return position after the EOI marker of the record or -1 if no valid record starts at soi
+     */
+    public static int recordEnd(final ByteBuffer buffer, final int soi, final int limit) {
+        if (soi < 0 || soi + 2 > limit || marker(buffer, soi) != SOI_WSQ) {
+            return -1;
+        }
+        int pos = soi + 2;
+        while (pos + 2 <= limit) {
+            final int marker = marker(buffer, pos);
+            switch (marker) {
+                case EOI_WSQ:
+                    return pos + 2;
+                case SOF_WSQ:
+                case DTT_WSQ:
+                case DQT_WSQ:
+                case DHT_WSQ:
+                case COM_WSQ:
+                    pos = skipSegment(buffer, pos, limit);
+                    break;
+                case SOB_WSQ:
+                    pos = skipSegment(buffer, pos, limit);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                    pos = skipEntropyCodedData(buffer, pos, limit);
+                    break;
+                default:
+                    return -1;
+            }
+            if (pos < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int marker(final ByteBuffer buffer, final int pos) {
+        return ((buffer.get(pos) & 0xff) << 8) | (buffer.get(pos + 1) & 0xff);
+    }
+
+    private static int skipSegment(final ByteBuffer buffer, final int pos, final int limit) {
+        if (pos + 4 > limit) {
+            return -1;
+        }
+        final int length = marker(buffer, pos + 2);  /* segment length includes the length field */
+        if (length < 2 || pos + 2 + length > limit) {
+            return -1;
+        }
+        return pos + 2 + length;
+    }
+
+    private static int skipEntropyCodedData(final ByteBuffer buffer, final int from, final int limit) {
+        int pos = from;
+        while (pos + 1 < limit) {
+            if ((buffer.get(pos) & 0xff) == 0xff) {
+                if (buffer.get(pos + 1) != 0) {
+                    return pos;
+                }
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+}